@@ -1,7 +1,16 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 
 public class ActBroadMsg extends JsonMessage {
+    // unique id of the activity, servers drop the copies they have already seen
+    private String id = null;
+    // when the origin server sent it, in milliseconds
+    private long time = 0;
+    // hybrid logical clock timestamp from the origin server, which orders the history
+    private long hlc = 0;
     private Activity activity = new Activity();
 
     public ActBroadMsg() {
@@ -16,6 +25,18 @@ public class ActBroadMsg extends JsonMessage {
         activity.setObject(obj);
     }
 
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public void setHlc(long hlc) {
+        this.hlc = hlc;
+    }
+
     class Activity {
         private String object = "";
         private String authenticated_user = "";
@@ -32,5 +53,23 @@ public class ActBroadMsg extends JsonMessage {
         private void setActor(String a) {
             authenticated_user = a;
         }
+
+        private void write(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("object").value(object);
+            out.name("authenticated_user").value(authenticated_user);
+            out.endObject();
+        }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        if (id != null) {
+            out.name("id").value(id);
+            out.name("time").value(time);
+            out.name("hlc").value(hlc);
+        }
+        out.name("activity");
+        activity.write(out);
     }
 }
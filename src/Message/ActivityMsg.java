@@ -1,5 +1,8 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 
 public class ActivityMsg extends JsonMessage {
     private Activity activity = new Activity();
@@ -23,6 +26,13 @@ public class ActivityMsg extends JsonMessage {
         public void setActor(String a) {
             authenticated_user = a;
         }
+
+        private void write(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("object").value(object);
+            out.name("authenticated_user").value(authenticated_user);
+            out.endObject();
+        }
     }
 
     public ActivityMsg() {
@@ -44,4 +54,13 @@ public class ActivityMsg extends JsonMessage {
     public void setSecret(String s) {
         secret = s;
     }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("activity");
+        activity.write(out);
+        out.name("username").value(username);
+        out.name("secret").value(secret);
+        out.name("id").value(id);
+    }
 }
@@ -1,8 +1,14 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class AnonymousLoginMsg extends JsonMessage {
     private String username = "";
     private String secret = "";
+    // this client answers heartbeats, servers only send them to clients which say so
+    private boolean heartbeat = true;
 
     public AnonymousLoginMsg() {
         setCommand(JsonMessage.LOGIN);
@@ -12,4 +18,11 @@ public class AnonymousLoginMsg extends JsonMessage {
     private void setUsername(String n) {
         username = n;
     }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("username").value(username);
+        out.name("secret").value(secret);
+        out.name("heartbeat").value(heartbeat);
+    }
 }
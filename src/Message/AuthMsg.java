@@ -1,7 +1,13 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class AuthMsg extends JsonMessage {
     private String secret = "";
+    // this server sends and takes heartbeats, older servers reject them as invalid messages
+    private boolean heartbeat = true;
 
     public AuthMsg() {
         setCommand(JsonMessage.AUTHENTICATE);
@@ -10,4 +16,10 @@ public class AuthMsg extends JsonMessage {
     public void setSecret(String s) {
         secret = s;
     }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("secret").value(secret);
+        out.name("heartbeat").value(heartbeat);
+    }
 }
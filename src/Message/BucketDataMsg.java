@@ -0,0 +1,54 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class BucketDataMsg extends JsonMessage {
+    private HashMap<String, String> userList;
+    private HashMap<String, String> allJSONMessage;
+    // while more entries follow, the buckets asked for and where the next request starts
+    private ArrayList<Integer> buckets = new ArrayList<>();
+    private long next = -1;
+
+    public BucketDataMsg() {
+        setCommand(JsonMessage.BUCKET_DATA);
+        userList = new HashMap<>();
+        allJSONMessage = new HashMap<>();
+    }
+
+    public void addUser(String username, String secret) {
+        userList.put(username, secret);
+    }
+
+    public void addActivityMessage(String key, String activityMessage) {
+        allJSONMessage.put(key, activityMessage);
+    }
+
+    /*
+     * the page is not the last one, the rest starts at entry next of the buckets
+     */
+    public void setNext(Iterable<Integer> buckets, long next) {
+        this.buckets.clear();
+        for (int bucket : buckets) {
+            this.buckets.add(bucket);
+        }
+        this.next = next;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        writeMap(out, "userList", userList);
+        writeMap(out, "allJSONMessage", allJSONMessage);
+        if (next >= 0) {
+            out.name("buckets").beginArray();
+            for (int bucket : buckets) {
+                out.value(bucket);
+            }
+            out.endArray();
+            out.name("next").value(next);
+        }
+    }
+}
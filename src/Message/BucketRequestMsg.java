@@ -0,0 +1,40 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class BucketRequestMsg extends JsonMessage {
+    // the nodes of the hash tree whose entries are requested, at any level
+    private ArrayList<Integer> buckets;
+    // entries of the buckets, taken in order, already received
+    private long from = 0;
+
+    public BucketRequestMsg() {
+        setCommand(JsonMessage.BUCKET_REQUEST);
+        buckets = new ArrayList<>();
+    }
+
+    public void addBucket(int bucket) {
+        buckets.add(bucket);
+    }
+
+    public void setFrom(long from) {
+        this.from = from;
+    }
+
+    public boolean isEmpty() {
+        return buckets.isEmpty();
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("buckets").beginArray();
+        for (int bucket : buckets) {
+            out.value(bucket);
+        }
+        out.endArray();
+        out.name("from").value(from);
+    }
+}
@@ -1,5 +1,9 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class ClientAuthenticateMsg extends JsonMessage {
     private String username = "";
     private String secret = "";
@@ -20,4 +24,11 @@ public class ClientAuthenticateMsg extends JsonMessage {
     public void setSecret(String s) {
         secret = s;
     }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("username").value(username);
+        out.name("secret").value(secret);
+        out.name("id").value(id);
+    }
 }
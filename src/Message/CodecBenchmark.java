@@ -0,0 +1,95 @@
+package Message;
+
+import activitystreamer.util.Frames;
+import com.google.gson.Gson;
+
+import java.util.function.Supplier;
+
+/*
+ * Compares the codecs of MessageCodecs with the path they replaced, which built a new Gson and
+ * serialized the message by reflection every time. Also shown is a shared reflective Gson, to
+ * tell the cost of creating a Gson from that of reflection. Constant responses are compared as
+ * frames, since the codecs send a cached one.
+ *
+ * Run it with the classes and lib/* on the class path:
+ *   java Message.CodecBenchmark [milliseconds per measurement]
+ */
+public class CodecBenchmark {
+    private static final Gson REFLECTIVE = new Gson();
+    // keeps the results alive, so the work is not optimised away
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+
+        ActBroadMsg activity = new ActBroadMsg();
+        activity.setId("k2m9q1x7.1");
+        activity.setTime(1792215406838L);
+        activity.setHlc(117454628902535168L);
+        activity.setActor("bob");
+        activity.setObject("an activity with a \"quoted\" word, <html> and an accent: caf\u00e9");
+
+        ServerAnnounceMsg announce = new ServerAnnounceMsg();
+        announce.setId("b1c4e7f0a2");
+        announce.setHostname("localhost");
+        announce.setPort(4601);
+        announce.setLoad(17);
+        announce.setVersion(20000);
+        announce.setDigest("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+
+        System.out.printf("%-20s %14s %14s %14s%n", "ns per message", "new Gson", "shared Gson", "codec");
+        compare("ACTIVITY_BROADCAST", activity, millis);
+        compare("SERVER_ANNOUNCE", announce, millis);
+
+        Supplier<Object> oldFrame = () -> {
+            LoginSuccMsg msg = new LoginSuccMsg();
+            msg.setInfo("Login successful");
+            return Frames.encode(new Gson().toJson(msg));
+        };
+        Supplier<Object> sharedFrame = () -> {
+            LoginSuccMsg msg = new LoginSuccMsg();
+            msg.setInfo("Login successful");
+            return Frames.encode(REFLECTIVE.toJson(msg));
+        };
+        Supplier<Object> cachedFrame = () -> MessageCodecs.infoFrame(JsonMessage.LOGIN_SUCCESS, "Login successful");
+        System.out.printf("%-20s %14.0f %14.0f %14.0f%n", "LOGIN_SUCCESS frame",
+                time(oldFrame, millis), time(sharedFrame, millis), time(cachedFrame, millis));
+    }
+
+    private static void compare(String name, JsonMessage msg, long millis) {
+        String old = new Gson().toJson(msg);
+        if (!old.equals(msg.toJsonString())) {
+            System.out.println(name + ": the codec output differs\n  " + old + "\n  " + msg.toJsonString());
+        }
+
+        System.out.printf("%-20s %14.0f %14.0f %14.0f%n", name, time(() -> new Gson().toJson(msg), millis),
+                time(() -> REFLECTIVE.toJson(msg), millis), time(msg::toJsonString, millis));
+    }
+
+    /*
+     * nanoseconds per call, after running it as long again to warm up
+     */
+    private static double time(Supplier<Object> task, long millis) {
+        run(task, millis);
+
+        return run(task, millis);
+    }
+
+    private static double run(Supplier<Object> task, long millis) {
+        long calls = 0;
+        long hash = 0;
+        long began = System.nanoTime();
+        long end = began + millis * 1000000;
+        long now;
+
+        do {
+            for (int i = 0; i < 100; i++) {
+                hash += task.get().hashCode();
+            }
+            calls += 100;
+        } while ((now = System.nanoTime()) < end);
+        sink = hash;
+
+        return (double) (now - began) / calls;
+    }
+}
@@ -0,0 +1,8 @@
+package Message;
+
+public class HeartbeatMsg extends JsonMessage {
+
+    public HeartbeatMsg() {
+        setCommand(JsonMessage.HEARTBEAT);
+    }
+}
@@ -1,5 +1,9 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class InvalidMsg extends JsonMessage {
     private String info = "";
 
@@ -10,4 +14,9 @@ public class InvalidMsg extends JsonMessage {
     public void setInfo(String info) {
         this.info = info;
     }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("info").value(info);
+    }
 }
@@ -1,7 +1,9 @@
 package Message;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
+import java.util.Map;
 
 /*
  * Standardize format and content of Json message going between
@@ -32,6 +34,19 @@ public class JsonMessage {
     public final static String LOCK_ALLOWED = "LOCK_ALLOWED";
     public final static String REQUEST_ALL = "REQUEST_ALL";
     public final static String REQUEST_ALL_BACK = "REQUEST_ALL_BACK";
+    public final static String SYNC_REQUEST = "SYNC_REQUEST";
+    public final static String SYNC_DELTA = "SYNC_DELTA";
+    public final static String MERKLE_REQUEST = "MERKLE_REQUEST";
+    public final static String MERKLE_NODES = "MERKLE_NODES";
+    public final static String BUCKET_REQUEST = "BUCKET_REQUEST";
+    public final static String BUCKET_DATA = "BUCKET_DATA";
+    public final static String QUERY = "QUERY";
+    public final static String SEARCH = "SEARCH";
+    public final static String SEARCH_RESULT = "SEARCH_RESULT";
+    public final static String SNAPSHOT_REQUEST = "SNAPSHOT_REQUEST";
+    public final static String SNAPSHOT_CHUNK = "SNAPSHOT_CHUNK";
+    public final static String SNAPSHOT_ACK = "SNAPSHOT_ACK";
+    public final static String HEARTBEAT = "HEARTBEAT";
 
     private String command = "";
 
@@ -45,6 +60,36 @@ public class JsonMessage {
     }
 
     public String toJsonString() {
-        return new Gson().toJson(this);
+        return MessageCodecs.toJson(this);
+    }
+
+    /*
+     * Write the fields of the message in the order Gson's reflection used to, every field
+     * except command, which is written last. Messages with fields override this.
+     */
+    protected void writeFields(JsonWriter out) throws IOException {
+
+    }
+
+    final void write(JsonWriter out) throws IOException {
+        out.beginObject();
+        writeFields(out);
+        out.name("command").value(command);
+        out.endObject();
+    }
+
+    protected static void writeMap(JsonWriter out, String name, Map<String, String> map) throws IOException {
+        out.name(name);
+
+        if (map == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            out.name(entry.getKey()).value(entry.getValue());
+        }
+        out.endObject();
     }
 }
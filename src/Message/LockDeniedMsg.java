@@ -1,5 +1,9 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class LockDeniedMsg extends JsonMessage{
 
     private String username = "";
@@ -19,4 +23,11 @@ public class LockDeniedMsg extends JsonMessage{
     }
 
     public void setOriginalServer(String o){originalServer = o;}
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("username").value(username);
+        out.name("secret").value(secret);
+        out.name("originalServer").value(originalServer);
+    }
 }
@@ -1,8 +1,14 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class LoginMsg extends JsonMessage {
     private String username = "";
     private String secret = "";
+    // this client answers heartbeats, servers only send them to clients which say so
+    private boolean heartbeat = true;
 
     public LoginMsg() {
         setCommand(JsonMessage.LOGIN);
@@ -15,4 +21,11 @@ public class LoginMsg extends JsonMessage {
     public void setSecret(String s) {
         secret = s;
     }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("username").value(username);
+        out.name("secret").value(secret);
+        out.name("heartbeat").value(heartbeat);
+    }
 }
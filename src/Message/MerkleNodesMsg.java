@@ -0,0 +1,41 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+public class MerkleNodesMsg extends JsonMessage {
+    private int node = 0;
+    // the version of the sender's replication log the hashes were taken at
+    private long version = 0;
+    private long[] hashes = new long[0];
+
+    public MerkleNodesMsg() {
+        setCommand(JsonMessage.MERKLE_NODES);
+    }
+
+    public void setNode(int node) {
+        this.node = node;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public void setHashes(long[] hashes) {
+        this.hashes = hashes;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("node").value(node);
+        out.name("version").value(version);
+
+        // hex, a JSON number cannot hold every 64 bit value exactly
+        out.name("hashes").beginArray();
+        for (long hash : hashes) {
+            out.value(Long.toHexString(hash));
+        }
+        out.endArray();
+    }
+}
@@ -0,0 +1,23 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+public class MerkleRequestMsg extends JsonMessage {
+    // the inner node of the hash tree whose children are requested, 0 for the root
+    private int node = 0;
+
+    public MerkleRequestMsg() {
+        setCommand(JsonMessage.MERKLE_REQUEST);
+    }
+
+    public void setNode(int node) {
+        this.node = node;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("node").value(node);
+    }
+}
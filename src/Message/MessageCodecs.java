@@ -0,0 +1,109 @@
+package Message;
+
+import activitystreamer.util.Frames;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Central registry of the codecs for the Message classes. Every message writes its own fields
+ * (JsonMessage.writeFields), so serializing never goes through Gson's reflection, and the one
+ * shared Gson instance replaces the Gson created for every message before. Constant responses
+ * are encoded once and their frames reused.
+ */
+public final class MessageCodecs {
+    // writes any JsonMessage through its hand written writeFields
+    public static final TypeAdapter<JsonMessage> MESSAGE_ADAPTER = new TypeAdapter<JsonMessage>() {
+        @Override
+        public void write(JsonWriter out, JsonMessage msg) throws IOException {
+            if (msg == null) {
+                out.nullValue();
+            } else {
+                msg.write(out);
+            }
+        }
+
+        @Override
+        public JsonMessage read(JsonReader in) throws IOException {
+            throw new UnsupportedOperationException("incoming messages are decoded with MessageDecoder");
+        }
+    };
+
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeHierarchyAdapter(JsonMessage.class, MESSAGE_ADAPTER)
+            .create();
+
+    // frames of constant info responses, keyed by command and info
+    private static final ConcurrentHashMap<String, ByteBuffer> infoFrames = new ConcurrentHashMap<>();
+
+    private MessageCodecs() {
+    }
+
+    /**
+     * Serialize a message, byte for byte as Gson's reflective serializer did
+     *
+     * @param msg the message
+     * @return String the JSON text
+     */
+    public static String toJson(JsonMessage msg) {
+        StringWriter text = new StringWriter();
+        JsonWriter out = new JsonWriter(text);
+        out.setHtmlSafe(true);
+        out.setSerializeNulls(false);
+
+        try {
+            msg.write(out);
+        } catch (IOException e) {
+            // a StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * The pre-encoded frame of a constant response made of a command and an info text, such as
+     * LOGIN_SUCCESS or one of the INVALID_MESSAGE variants. Only use it with constant texts,
+     * every distinct text stays cached.
+     *
+     * @param command the command of the response
+     * @param info    the constant info text
+     * @return ByteBuffer a shared read-only frame
+     */
+    public static ByteBuffer infoFrame(String command, String info) {
+        String key = command + '\n' + info;
+        ByteBuffer frame = infoFrames.get(key);
+
+        if (frame == null) {
+            InfoMsg msg = new InfoMsg(command, info);
+            frame = Frames.encode(msg.toJsonString());
+            infoFrames.putIfAbsent(key, frame);
+        }
+
+        return frame;
+    }
+
+    /*
+     * the shape shared by every info response: {"info": ..., "command": ...}
+     */
+    private static class InfoMsg extends JsonMessage {
+        private final String info;
+
+        private InfoMsg(String command, String info) {
+            setCommand(command);
+            this.info = info;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out) throws IOException {
+            out.name("info").value(info);
+        }
+    }
+}
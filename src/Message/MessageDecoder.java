@@ -0,0 +1,170 @@
+package Message;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+
+/*
+ * Decodes incoming messages with a streaming reader. The command is found first, then only the
+ * top level fields the handler of that command reads are decoded, every other value is skipped.
+ * Commands which only need a few fields never build a tree for the rest of the message.
+ */
+public final class MessageDecoder {
+    private static final String[] NO_FIELDS = new String[0];
+    private static final HashMap<String, String[]> FIELDS = new HashMap<>();
+    private static final JsonParser parser = new JsonParser();
+
+    static {
+        String[] user = {"username", "secret"};
+
+        FIELDS.put(JsonMessage.LOGIN, new String[]{"username", "secret", "heartbeat"});
+        FIELDS.put(JsonMessage.REGISTER, user);
+        FIELDS.put(JsonMessage.CLIENT_AUTHENTICATE, user);
+        FIELDS.put(JsonMessage.AUTHENTICATE, new String[]{"secret", "heartbeat"});
+        FIELDS.put(JsonMessage.INVALID_MESSAGE, new String[]{"info"});
+        FIELDS.put(JsonMessage.ACTIVITY_MESSAGE, new String[]{"username", "secret", "activity"});
+        FIELDS.put(JsonMessage.ACTIVITY_BROADCAST, new String[]{"id", "time", "hlc", "activity"});
+        FIELDS.put(JsonMessage.REQUEST_ALL, new String[]{"since", "limit", "cursor"});
+        FIELDS.put(JsonMessage.QUERY, new String[]{"actor", "from", "to", "limit", "cursor"});
+        FIELDS.put(JsonMessage.SEARCH, new String[]{"query", "k"});
+        FIELDS.put(JsonMessage.SERVER_ANNOUNCE,
+                new String[]{"id", "hostname", "port", "load", "version", "digest", "heartbeat"});
+        FIELDS.put(JsonMessage.SYNC_REQUEST, new String[]{"since"});
+        FIELDS.put(JsonMessage.SYNC_DELTA, new String[]{"from", "to", "userList", "allJSONMessage"});
+        FIELDS.put(JsonMessage.MERKLE_REQUEST, new String[]{"node"});
+        FIELDS.put(JsonMessage.MERKLE_NODES, new String[]{"node", "version", "hashes"});
+        FIELDS.put(JsonMessage.BUCKET_REQUEST, new String[]{"buckets", "from"});
+        FIELDS.put(JsonMessage.BUCKET_DATA, new String[]{"userList", "allJSONMessage", "buckets", "next"});
+        FIELDS.put(JsonMessage.SNAPSHOT_REQUEST, new String[]{"window"});
+        FIELDS.put(JsonMessage.SNAPSHOT_CHUNK,
+                new String[]{"seq", "version", "userList", "allJSONMessage", "checksum", "usersComplete", "last"});
+        FIELDS.put(JsonMessage.SNAPSHOT_ACK, new String[]{"seq", "ok"});
+    }
+
+    private MessageDecoder() {
+    }
+
+    /**
+     * Decode the command of a message and the fields its handler needs
+     *
+     * @param msg the raw message
+     * @return JsonObject holding command, if present, and the needed fields that were present
+     * @throws JsonSyntaxException if the message is not a well formed JSON object
+     */
+    public static JsonObject decode(String msg) throws JsonSyntaxException {
+        try {
+            JsonObject decoded = new JsonObject();
+            JsonReader reader = open(msg);
+
+            if (!reader.hasNext()) {
+                finish(reader);
+
+                return decoded;
+            }
+
+            String name = reader.nextName();
+            if (name.equals("command") && isScalar(reader.peek())) {
+                // command came first, the rest of the same stream goes to the decoder for it
+                String command = reader.nextString();
+                decoded.addProperty("command", command);
+                readFields(reader, fieldsFor(command), decoded);
+
+                return decoded;
+            }
+
+            // find the command by skipping values, then decode the needed fields from the start
+            String command = findCommand(reader, name);
+            if (command != null) {
+                decoded.addProperty("command", command);
+            }
+
+            reader = open(msg);
+            readFields(reader, fieldsFor(command), decoded);
+
+            return decoded;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static JsonReader open(String msg) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(msg));
+        // as lenient as Gson.fromJson, which this replaces
+        reader.setLenient(true);
+        reader.beginObject();
+
+        return reader;
+    }
+
+    private static String[] fieldsFor(String command) {
+        String[] fields = command == null ? null : FIELDS.get(command);
+
+        return fields == null ? NO_FIELDS : fields;
+    }
+
+    private static boolean isScalar(JsonToken token) {
+        return token == JsonToken.STRING || token == JsonToken.NUMBER;
+    }
+
+    /*
+     * scan the rest of the object for the command, the given name has been read already
+     */
+    private static String findCommand(JsonReader reader, String name) throws IOException {
+        String command = null;
+
+        while (true) {
+            if (command == null && name.equals("command") && isScalar(reader.peek())) {
+                command = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+
+            if (!reader.hasNext()) {
+                break;
+            }
+            name = reader.nextName();
+        }
+        finish(reader);
+
+        return command;
+    }
+
+    private static void readFields(JsonReader reader, String[] fields, JsonObject decoded) throws IOException {
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (!decoded.has(name) && isWanted(fields, name)) {
+                JsonElement value = parser.parse(reader);
+                decoded.add(name, value);
+            } else {
+                reader.skipValue();
+            }
+        }
+        finish(reader);
+    }
+
+    private static boolean isWanted(String[] fields, String name) {
+        for (String field : fields) {
+            if (field.equals(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void finish(JsonReader reader) throws IOException {
+        reader.endObject();
+
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new JsonSyntaxException("JSON document was not fully consumed.");
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package Message;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/*
+ * Reads just enough of a raw message to route it, with a streaming reader and without
+ * building a JsonObject tree. Values which are not needed are skipped.
+ */
+public final class MessageSniffer {
+    private static final String LEADING_ID = "{\"id\":\"";
+    private static final String FOLLOWING_TIME = "\",\"time\":";
+    private static final String LEADING_COMMAND = "{\"command\":\"";
+    private static final String COMMAND_FIELD = "\"command\":\"";
+
+    private MessageSniffer() {
+    }
+
+    /**
+     * Check that a message is a well formed ACTIVITY_BROADCAST carrying an activity object, so
+     * it can be relayed exactly as it was received
+     *
+     * @param msg the raw message
+     * @return true if the message can be relayed without parsing it
+     */
+    public static boolean isActivityBroadcast(String msg) {
+        return readActivityBroadcast(msg) != null;
+    }
+
+    /**
+     * Read the routing fields of an ACTIVITY_BROADCAST which can be relayed as received
+     *
+     * @param msg the raw message
+     * @return the id, send time and timestamp of the activity, or null if the message cannot be
+     * relayed without parsing it
+     */
+    public static BroadcastHeader readActivityBroadcast(String msg) {
+        boolean broadcast = false;
+        boolean hasActivity = false;
+        String id = null;
+        long time = 0;
+        long hlc = 0;
+
+        try {
+            JsonReader reader = new JsonReader(new StringReader(msg));
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+
+                if (name.equals("command") && reader.peek() == JsonToken.STRING) {
+                    if (!reader.nextString().equals(JsonMessage.ACTIVITY_BROADCAST)) {
+                        // any other message is read once, by the decoder
+                        return null;
+                    }
+                    broadcast = true;
+                } else if (name.equals("activity") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    hasActivity = true;
+                    reader.skipValue();
+                } else if (name.equals("id") && reader.peek() == JsonToken.STRING) {
+                    id = reader.nextString();
+                } else if (name.equals("time") && reader.peek() == JsonToken.NUMBER) {
+                    time = reader.nextLong();
+                } else if (name.equals("hlc") && reader.peek() == JsonToken.NUMBER) {
+                    hlc = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (broadcast && hasActivity && reader.peek() == JsonToken.END_DOCUMENT) {
+                return new BroadcastHeader(id, time, hlc);
+            }
+
+            return null;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // malformed, leave it to the full parser to report
+            return null;
+        }
+    }
+
+    /**
+     * Read the command of a message without reading the rest, when it is the first field or the
+     * last one, where the messages of this project put it. Only a hint for routing: the message
+     * is still checked by whatever reads it next.
+     *
+     * @param msg the raw message
+     * @return the command, or null if it is elsewhere, escaped or missing
+     */
+    public static String peekCommand(String msg) {
+        int start;
+        int end;
+
+        if (msg.startsWith(LEADING_COMMAND)) {
+            start = LEADING_COMMAND.length();
+            end = msg.indexOf('"', start);
+        } else if (msg.endsWith("\"}")) {
+            // a "command":" can only be a key, inside a string its quotes would be escaped, and
+            // it is a key of the message itself when its value closes the message
+            start = msg.lastIndexOf(COMMAND_FIELD) + COMMAND_FIELD.length();
+            end = msg.length() - 2;
+            if (start < COMMAND_FIELD.length() || msg.indexOf('"', start) != end) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+
+        if (end < 0) {
+            return null;
+        }
+        String command = msg.substring(start, end);
+
+        return command.indexOf('\\') < 0 ? command : null;
+    }
+
+    /**
+     * Read the id of an ACTIVITY_BROADCAST written by a server, which puts the id first and the
+     * send time right after it, without reading the rest of the message
+     *
+     * @param msg the raw message
+     * @return the id, or null if the message does not start like a server's ACTIVITY_BROADCAST
+     */
+    public static String readLeadingActivityId(String msg) {
+        if (!msg.startsWith(LEADING_ID)) {
+            return null;
+        }
+
+        int end = msg.indexOf('"', LEADING_ID.length());
+        if (end < 0 || !msg.startsWith(FOLLOWING_TIME, end)) {
+            return null;
+        }
+
+        String id = msg.substring(LEADING_ID.length(), end);
+
+        // an escaped id is left to the full reader
+        return id.indexOf('\\') < 0 ? id : null;
+    }
+
+    public static final class BroadcastHeader {
+        private final String id;
+        private final long time;
+        private final long hlc;
+
+        private BroadcastHeader(String id, long time, long hlc) {
+            this.id = id;
+            this.time = time;
+            this.hlc = hlc;
+        }
+
+        /*
+         * null if the sender did not give the activity an id
+         */
+        public String getId() {
+            return id;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /*
+         * 0 if the sender did not stamp the activity
+         */
+        public long getHlc() {
+            return hlc;
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class RedirectMsg extends JsonMessage {
     private String hostname = "";
     private String id = "";
@@ -20,4 +24,11 @@ public class RedirectMsg extends JsonMessage {
     public void setPort(int p) {
         port = p;
     }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("hostname").value(hostname);
+        out.name("id").value(id);
+        out.name("port").value(port);
+    }
 }
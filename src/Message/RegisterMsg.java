@@ -1,5 +1,9 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class RegisterMsg extends JsonMessage {
     private String username = "";
     private String secret = "";
@@ -15,4 +19,10 @@ public class RegisterMsg extends JsonMessage {
     public void setSecret(String s) {
         secret = s;
     }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("username").value(username);
+        out.name("secret").value(secret);
+    }
 }
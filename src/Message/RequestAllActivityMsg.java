@@ -1,13 +1,21 @@
 package Message;
 
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 
 public class RequestAllActivityMsg extends JsonMessage{
 
     private String username = "";
     private String secret = "";
 
-    private HashMap<String,String> allActivityMessage;
+    private Map<String,String> allActivityMessage;
+
+    // a client asking for pages gives their size, and the cursor of the last page it got
+    private int limit = 0;
+    private String cursor = null;
 
     public RequestAllActivityMsg() {
         setCommand(JsonMessage.REQUEST_ALL);
@@ -22,7 +30,28 @@ public class RequestAllActivityMsg extends JsonMessage{
         secret = s;
     }
 
-    public void setAllActivityMessage(HashMap<String, String> allActivityMessage) {
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public void setAllActivityMessage(Map<String, String> allActivityMessage) {
         this.allActivityMessage = allActivityMessage;
     }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("username").value(username);
+        out.name("secret").value(secret);
+        writeMap(out, "allActivityMessage", allActivityMessage);
+        if (limit > 0) {
+            out.name("limit").value(limit);
+        }
+        if (cursor != null) {
+            out.name("cursor").value(cursor);
+        }
+    }
 }
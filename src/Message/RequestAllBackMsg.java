@@ -0,0 +1,41 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class RequestAllBackMsg extends JsonMessage {
+    // one page of the history, in order
+    private Map<String, String> allActivityMessage = new LinkedHashMap<>();
+    // where the next page starts, opaque to the client
+    private String cursor = null;
+    // whether there are more activities after this page
+    private boolean more = false;
+
+    public RequestAllBackMsg() {
+        setCommand(JsonMessage.REQUEST_ALL_BACK);
+    }
+
+    public void setAllActivityMessage(Map<String, String> allActivityMessage) {
+        this.allActivityMessage = allActivityMessage;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public void setMore(boolean more) {
+        this.more = more;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        writeMap(out, "allActivityMessage", allActivityMessage);
+        if (cursor != null) {
+            out.name("cursor").value(cursor);
+        }
+        out.name("more").value(more);
+    }
+}
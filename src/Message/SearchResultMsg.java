@@ -0,0 +1,31 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SearchResultMsg extends JsonMessage {
+    private String query = "";
+    // the matching activities, best first
+    private Map<String, String> allActivityMessage = new LinkedHashMap<>();
+
+    public SearchResultMsg() {
+        setCommand(JsonMessage.SEARCH_RESULT);
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    public void setAllActivityMessage(Map<String, String> allActivityMessage) {
+        this.allActivityMessage = allActivityMessage;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("query").value(query);
+        writeMap(out, "allActivityMessage", allActivityMessage);
+    }
+}
@@ -1,22 +1,23 @@
 package Message;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
 
 public class ServerAnnounceMsg extends JsonMessage {
     private String id = "";
     private String hostname = "";
     private int load = 0;
     private int port = 0;
-    private HashMap<String,String> userList;
-    private HashMap<String,String> allJSONMessage;
+    // the version of the sender's replication log, peers behind it ask for the delta
+    private long version = 0;
+    // the root of the hash tree over the sender's users and activity messages
+    private String digest = "";
+    // this server sends and takes heartbeats, for the peers it connected to itself
+    private boolean heartbeat = true;
 
     public ServerAnnounceMsg() {
         setCommand(JsonMessage.SERVER_ANNOUNCE);
-        userList = new HashMap<>();
-        allJSONMessage = new HashMap<>();
     }
 
     public void setId(String id) {
@@ -35,11 +36,22 @@ public class ServerAnnounceMsg extends JsonMessage {
         this.load = load;
     }
 
-    public void setUserList(HashMap<String, String> userList) {
-        this.userList = userList;
+    public void setVersion(long version) {
+        this.version = version;
     }
 
-    public void setAllJSONMessage(HashMap<String, String> allJSONMessage) {
-        this.allJSONMessage = allJSONMessage;
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("id").value(id);
+        out.name("hostname").value(hostname);
+        out.name("load").value(load);
+        out.name("port").value(port);
+        out.name("version").value(version);
+        out.name("digest").value(digest);
+        out.name("heartbeat").value(heartbeat);
     }
 }
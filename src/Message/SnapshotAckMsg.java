@@ -0,0 +1,29 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+public class SnapshotAckMsg extends JsonMessage {
+    private int seq = 0;
+    // false asks for the chunks from seq on again
+    private boolean ok = true;
+
+    public SnapshotAckMsg() {
+        setCommand(JsonMessage.SNAPSHOT_ACK);
+    }
+
+    public void setSeq(int seq) {
+        this.seq = seq;
+    }
+
+    public void setOk(boolean ok) {
+        this.ok = ok;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("seq").value(seq);
+        out.name("ok").value(ok);
+    }
+}
@@ -0,0 +1,72 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+public class SnapshotChunkMsg extends JsonMessage {
+    private int seq = 0;
+    // the version of the sender's replication log the snapshot is taken at
+    private long version = 0;
+    // entries in the order the checksum is computed over
+    private LinkedHashMap<String, String> userList;
+    private LinkedHashMap<String, String> allJSONMessage;
+    private String checksum = "";
+    // every user of the snapshot is in this chunk or an earlier one
+    private boolean usersComplete = false;
+    private boolean last = false;
+
+    public SnapshotChunkMsg() {
+        setCommand(JsonMessage.SNAPSHOT_CHUNK);
+        userList = new LinkedHashMap<>();
+        allJSONMessage = new LinkedHashMap<>();
+    }
+
+    public void setSeq(int seq) {
+        this.seq = seq;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public void addUser(String username, String secret) {
+        userList.put(username, secret);
+    }
+
+    public void addActivityMessage(String key, String activityMessage) {
+        allJSONMessage.put(key, activityMessage);
+    }
+
+    public LinkedHashMap<String, String> getUserList() {
+        return userList;
+    }
+
+    public LinkedHashMap<String, String> getAllJSONMessage() {
+        return allJSONMessage;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    public void setUsersComplete(boolean usersComplete) {
+        this.usersComplete = usersComplete;
+    }
+
+    public void setLast(boolean last) {
+        this.last = last;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("seq").value(seq);
+        out.name("version").value(version);
+        writeMap(out, "userList", userList);
+        writeMap(out, "allJSONMessage", allJSONMessage);
+        out.name("checksum").value(checksum);
+        out.name("usersComplete").value(usersComplete);
+        out.name("last").value(last);
+    }
+}
@@ -0,0 +1,23 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+public class SnapshotRequestMsg extends JsonMessage {
+    // the most chunks the sender may have unacknowledged
+    private int window = 0;
+
+    public SnapshotRequestMsg() {
+        setCommand(JsonMessage.SNAPSHOT_REQUEST);
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("window").value(window);
+    }
+}
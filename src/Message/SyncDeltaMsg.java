@@ -0,0 +1,44 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+public class SyncDeltaMsg extends JsonMessage {
+    // the delta holds the changes after version from, up to and including version to
+    private long from = 0;
+    private long to = 0;
+    private HashMap<String, String> userList;
+    private HashMap<String, String> allJSONMessage;
+
+    public SyncDeltaMsg() {
+        setCommand(JsonMessage.SYNC_DELTA);
+        userList = new HashMap<>();
+        allJSONMessage = new HashMap<>();
+    }
+
+    public void setFrom(long from) {
+        this.from = from;
+    }
+
+    public void setTo(long to) {
+        this.to = to;
+    }
+
+    public void addUser(String username, String secret) {
+        userList.put(username, secret);
+    }
+
+    public void addActivityMessage(String key, String activityMessage) {
+        allJSONMessage.put(key, activityMessage);
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("from").value(from);
+        out.name("to").value(to);
+        writeMap(out, "userList", userList);
+        writeMap(out, "allJSONMessage", allJSONMessage);
+    }
+}
@@ -0,0 +1,23 @@
+package Message;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+public class SyncRequestMsg extends JsonMessage {
+    // the version of the peer's log applied so far, which also acknowledges it
+    private long since = 0;
+
+    public SyncRequestMsg() {
+        setCommand(JsonMessage.SYNC_REQUEST);
+    }
+
+    public void setSince(long since) {
+        this.since = since;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out) throws IOException {
+        out.name("since").value(since);
+    }
+}
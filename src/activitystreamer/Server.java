@@ -40,6 +40,23 @@ public class Server {
         options.addOption("lh", true, "local hostname");
         options.addOption("a", true, "activity interval in milliseconds");
         options.addOption("s", true, "secret for the server to use");
+        options.addOption("io", true, "transport for connections: thread (default), virtual or nio");
+        options.addOption("iot", true, "number of selector threads used by the nio transport");
+        options.addOption("wt", true, "number of threads processing received messages");
+        options.addOption("sh", true, "number of shards processing the incoming connections, 0 for none (default)");
+        options.addOption("qm", true, "maximum messages queued for one connection");
+        options.addOption("qb", true, "maximum bytes queued for one connection");
+        options.addOption("scp", true, "slow consumer policy: drop-oldest, drop-newest (default) or disconnect");
+        options.addOption("gf", true, "gossip activities to this many random peers, 0 floods all (default)");
+        options.addOption("dd", true, "directory to keep the activity history in across restarts");
+        options.addOption("hc", true, "most recent activities cached in memory");
+        options.addOption("hb", true, "most bytes of recent activities cached in memory");
+        options.addOption("ha", true, "seconds a cached activity is kept, 0 for no limit (default)");
+        options.addOption("sb", true, "most bytes the full-text search index may take");
+        options.addOption("hi", true, "seconds of silence before a connection is sent a heartbeat, 0 for none");
+        options.addOption("it", true, "seconds of silence before a connection is closed (default 30)");
+        options.addOption("lit", true, "seconds of silence before a client sent no heartbeats is closed (default 600)");
+        options.addOption("cd", true, "seconds a received timestamp may be ahead of the local clock (default 60)");
 
         // build a parser
         CommandLineParser parser = new DefaultParser();
@@ -99,6 +116,158 @@ public class Server {
             Settings.setSecret(cmd.getOptionValue("s"));
         }
 
+        if (cmd.hasOption("io")) {
+            Settings.setTransport(cmd.getOptionValue("io"));
+        }
+
+        if (cmd.hasOption("iot")) {
+            try {
+                int n = Integer.parseInt(cmd.getOptionValue("iot"));
+                Settings.setIoThreads(n);
+            } catch (NumberFormatException e) {
+                log.error("-iot requires a number of threads, parsed: " + cmd.getOptionValue("iot"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("wt")) {
+            try {
+                int n = Integer.parseInt(cmd.getOptionValue("wt"));
+                Settings.setWorkerThreads(n);
+            } catch (NumberFormatException e) {
+                log.error("-wt requires a number of threads, parsed: " + cmd.getOptionValue("wt"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("sh")) {
+            try {
+                int n = Integer.parseInt(cmd.getOptionValue("sh"));
+                Settings.setShards(n);
+            } catch (NumberFormatException e) {
+                log.error("-sh requires a number of shards, parsed: " + cmd.getOptionValue("sh"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("qm")) {
+            try {
+                int n = Integer.parseInt(cmd.getOptionValue("qm"));
+                Settings.setMaxQueuedMessages(n);
+            } catch (NumberFormatException e) {
+                log.error("-qm requires a number of messages, parsed: " + cmd.getOptionValue("qm"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("qb")) {
+            try {
+                long n = Long.parseLong(cmd.getOptionValue("qb"));
+                Settings.setMaxQueuedBytes(n);
+            } catch (NumberFormatException e) {
+                log.error("-qb requires a number of bytes, parsed: " + cmd.getOptionValue("qb"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("scp")) {
+            Settings.setSlowConsumerPolicy(cmd.getOptionValue("scp"));
+        }
+
+        if (cmd.hasOption("gf")) {
+            try {
+                int n = Integer.parseInt(cmd.getOptionValue("gf"));
+                Settings.setGossipFanout(n);
+            } catch (NumberFormatException e) {
+                log.error("-gf requires a number of peers, parsed: " + cmd.getOptionValue("gf"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("dd")) {
+            Settings.setDataDirectory(cmd.getOptionValue("dd"));
+        }
+
+        if (cmd.hasOption("hc")) {
+            try {
+                int n = Integer.parseInt(cmd.getOptionValue("hc"));
+                Settings.setCacheActivities(n);
+            } catch (NumberFormatException e) {
+                log.error("-hc requires a number of activities, parsed: " + cmd.getOptionValue("hc"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("hb")) {
+            try {
+                long n = Long.parseLong(cmd.getOptionValue("hb"));
+                Settings.setCacheBytes(n);
+            } catch (NumberFormatException e) {
+                log.error("-hb requires a number of bytes, parsed: " + cmd.getOptionValue("hb"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("ha")) {
+            try {
+                long n = Long.parseLong(cmd.getOptionValue("ha"));
+                Settings.setCacheAgeMillis(n * 1000);
+            } catch (NumberFormatException e) {
+                log.error("-ha requires a number of seconds, parsed: " + cmd.getOptionValue("ha"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("sb")) {
+            try {
+                long n = Long.parseLong(cmd.getOptionValue("sb"));
+                Settings.setSearchIndexBytes(n);
+            } catch (NumberFormatException e) {
+                log.error("-sb requires a number of bytes, parsed: " + cmd.getOptionValue("sb"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("hi")) {
+            try {
+                long n = Long.parseLong(cmd.getOptionValue("hi"));
+                Settings.setHeartbeatMillis(n * 1000);
+            } catch (NumberFormatException e) {
+                log.error("-hi requires a number of seconds, parsed: " + cmd.getOptionValue("hi"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("it")) {
+            try {
+                long n = Long.parseLong(cmd.getOptionValue("it"));
+                Settings.setIdleTimeoutMillis(n * 1000);
+            } catch (NumberFormatException e) {
+                log.error("-it requires a number of seconds, parsed: " + cmd.getOptionValue("it"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("lit")) {
+            try {
+                long n = Long.parseLong(cmd.getOptionValue("lit"));
+                Settings.setLegacyIdleTimeoutMillis(n * 1000);
+            } catch (NumberFormatException e) {
+                log.error("-lit requires a number of seconds, parsed: " + cmd.getOptionValue("lit"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("cd")) {
+            try {
+                long n = Long.parseLong(cmd.getOptionValue("cd"));
+                Settings.setMaxClockDriftMillis(n * 1000);
+            } catch (NumberFormatException e) {
+                log.error("-cd requires a number of seconds, parsed: " + cmd.getOptionValue("cd"));
+                help(options);
+            }
+        }
+
         log.info("starting server");
 
         final ServerControl bs = ServerControl.getInstance();
@@ -25,7 +25,7 @@ public class ClientConnection extends Connection {
 
         try {
             while (!term && (data = inreader.readLine()) != null) {
-                term = ClientControl.getInstance().process(data);
+                term = handleMsg(data);
             }
 
             log.debug("connection closed to " + Settings.socketAddress(socket));
@@ -35,4 +35,9 @@ public class ClientConnection extends Connection {
 
         closeStream();
     }
+
+    @Override
+    public boolean handleMsg(String msg) {
+        return ClientControl.getInstance().process(msg);
+    }
 }
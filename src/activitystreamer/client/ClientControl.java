@@ -2,7 +2,6 @@ package activitystreamer.client;
 
 import Message.*;
 import activitystreamer.util.Settings;
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import org.apache.logging.log4j.LogManager;
@@ -11,6 +10,7 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -32,6 +32,12 @@ public class ClientControl extends Thread {
     private LoginFrame loginFrame;
 
     private boolean connectionClosed;
+    // the history is fetched in pages of this many activities
+    private static final int REPLAY_PAGE_SIZE = 100;
+    // cursor of the last history page received, kept across reconnects so they only fetch what is new
+    private String replayCursor = null;
+    // process() holds a lock rather than the monitor so a virtual reader thread is not pinned
+    private final ReentrantLock processLock = new ReentrantLock();
 
     private ClientControl() {
         connectionClosed = true;
@@ -86,13 +92,22 @@ public class ClientControl extends Thread {
      * @param receivedJsonStr
      * @return boolean
      */
-    public synchronized boolean process(String receivedJsonStr) {
+    public boolean process(String receivedJsonStr) {
+        processLock.lock();
+        try {
+            return processMsg(receivedJsonStr);
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    private boolean processMsg(String receivedJsonStr) {
         log.debug("Client received: " + receivedJsonStr);
 
         JsonObject receivedJson;
 
         try {
-            receivedJson = new Gson().fromJson(receivedJsonStr, JsonObject.class);
+            receivedJson = MessageCodecs.GSON.fromJson(receivedJsonStr, JsonObject.class);
         } catch (JsonSyntaxException e) {
             log.debug("Client receiving msg failed. Not json format: " + e.getMessage());
 
@@ -120,6 +135,10 @@ public class ClientControl extends Thread {
                 textFrame.sendOutPutText(receivedJson);
 
                 return false;
+
+            case JsonMessage.REQUEST_ALL_BACK:
+                return processRequestAllBackMsg(receivedJson);
+
             case JsonMessage.REGISTER_SUCCESS:
                 return processRegisterSuccessMsg(receivedJson);
 
@@ -146,6 +165,12 @@ public class ClientControl extends Thread {
             case JsonMessage.INVALID_MESSAGE:
                 return processInvalidMsg(receivedJson);
 
+            case JsonMessage.HEARTBEAT:
+                // the server closes a connection which stays silent, so it is answered
+                connection.writeMsg(new HeartbeatMsg().toJsonString());
+
+                return false;
+
             default:
                 return processUnknownMsg(receivedJson);
         }
@@ -192,15 +217,34 @@ public class ClientControl extends Thread {
 
         if (textFrame == null) {
             textFrame = new TextFrame();
+        }
+
+        // When the User reconnect the System, the Client will request the activity messages it
+        // has not got yet from the server, page by page. Added for Project 2
+        sendRequestAllMsg();
+
+        return false;
+    }
+
+    /**
+     * Process a page of the activity history, and ask for the next one while there are more
+     * @param receivedJson
+     * @return Boolean
+     */
+    private boolean processRequestAllBackMsg(JsonObject receivedJson) {
+        log.info("Receive previous message");
+
+        if (receivedJson.has("allActivityMessage") && receivedJson.get("allActivityMessage").isJsonObject()
+                && !receivedJson.getAsJsonObject("allActivityMessage").entrySet().isEmpty()) {
+            textFrame.sendOutPutText(receivedJson);
+        }
 
-            // When the User reconnect the System, the Client will request all activity messages from the server.
-            // Added for Project 2
-            RequestAllActivityMsg requestAllActivityMessage = new RequestAllActivityMsg();
-            requestAllActivityMessage.setUsername(Settings.getUsername());
-            requestAllActivityMessage.setSecret(Settings.getSecret());
-            String requestAllMessage = requestAllActivityMessage.toJsonString();
-            connection.writeMsg(requestAllMessage);
+        if (receivedJson.has("cursor") && receivedJson.get("cursor").isJsonPrimitive()) {
+            replayCursor = receivedJson.get("cursor").getAsString();
+        }
 
+        if (receivedJson.has("more") && receivedJson.get("more").getAsBoolean()) {
+            sendRequestAllMsg();
         }
 
         return false;
@@ -420,6 +464,23 @@ public class ClientControl extends Thread {
         connection.writeMsg(clientAuthMsg.toJsonString());
     }
 
+    /**
+     * The function for sending a request for the next page of the activity history
+     */
+    private void sendRequestAllMsg() {
+        if (connectionClosed) {
+            return;
+        }
+
+        RequestAllActivityMsg requestAllActivityMessage = new RequestAllActivityMsg();
+        requestAllActivityMessage.setUsername(Settings.getUsername());
+        requestAllActivityMessage.setSecret(Settings.getSecret());
+        requestAllActivityMessage.setLimit(REPLAY_PAGE_SIZE);
+        requestAllActivityMessage.setCursor(replayCursor);
+
+        connection.writeMsg(requestAllActivityMessage.toJsonString());
+    }
+
     /**
      * The function for sending logout Message to server
      *
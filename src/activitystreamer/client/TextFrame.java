@@ -1,6 +1,6 @@
 package activitystreamer.client;
 
-import com.google.gson.Gson;
+import Message.MessageCodecs;
 import com.google.gson.JsonObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -77,7 +77,7 @@ public class TextFrame extends JFrame implements ActionListener {
     }
 
     public void sendOutPutText(final JsonObject obj) {
-        String newText = new Gson().toJson(obj);
+        String newText = MessageCodecs.GSON.toJson(obj);
         String oldText = outputText.getText();
 
         outputText.setText(oldText + "\n\n" + newText);
@@ -0,0 +1,148 @@
+package activitystreamer.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The recently used activities kept in the heap in front of the ActivityLog on disk, by log
+ * offset. It is bounded by a number of activities and by their estimated size; beyond either
+ * bound the least recently used activities are evicted, and so are the ones older than the
+ * maximum age if there is one. Every activity is on disk already, so evicting only drops the
+ * heap copy. Counts hits, misses and evictions to size the bounds with.
+ *
+ * @author Huanan Li
+ */
+public class ActivityCache {
+    // object headers, the map entry and the fields besides the two strings
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final int maxCount;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    // the least recently used first; a hit moves the activity to the end
+    private final LinkedHashMap<Long, Cached> entries = new LinkedHashMap<>();
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxCount     the most activities to keep
+     * @param maxBytes     the most bytes the kept activities may take
+     * @param maxAgeMillis how long an activity is kept after it was added, 0 for no limit
+     */
+    public ActivityCache(int maxCount, long maxBytes, long maxAgeMillis) {
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Look an activity up, counting a hit or a miss
+     *
+     * @param offset the offset of the activity in the log
+     * @return Activity the activity, or null if it is not cached
+     */
+    public synchronized ActivityLog.Activity get(long offset) {
+        Cached cached = entries.get(offset);
+
+        if (cached != null && isExpired(cached, System.currentTimeMillis())) {
+            remove(offset);
+            cached = null;
+        }
+
+        if (cached == null) {
+            misses++;
+
+            return null;
+        }
+        hits++;
+        entries.remove(offset);
+        entries.put(offset, cached);
+
+        return cached.activity;
+    }
+
+    /*
+     * look an activity up for a scan, which neither counts nor makes it recently used
+     */
+    public synchronized ActivityLog.Activity peek(long offset) {
+        Cached cached = entries.get(offset);
+
+        return cached == null ? null : cached.activity;
+    }
+
+    public synchronized void put(long offset, ActivityLog.Activity activity) {
+        if (entries.containsKey(offset)) {
+            return;
+        }
+
+        Cached cached = new Cached(activity, System.currentTimeMillis());
+        entries.put(offset, cached);
+        bytes += cached.bytes;
+
+        Iterator<Cached> eldest = entries.values().iterator();
+        while ((entries.size() > maxCount || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /*
+     * drop the activities past the maximum age, called every few seconds
+     */
+    public synchronized void evictExpired() {
+        if (maxAgeMillis <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Cached> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Cached cached = it.next();
+
+            if (isExpired(cached, now)) {
+                bytes -= cached.bytes;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized String getStats() {
+        long lookups = hits + misses;
+
+        return "activity cache " + entries.size() + " activities, " + bytes + " bytes, hits " + hits
+                + ", misses " + misses + " (hit rate " + (lookups == 0 ? 0 : hits * 100 / lookups)
+                + "%), evictions " + evictions;
+    }
+
+    private boolean isExpired(Cached cached, long now) {
+        return maxAgeMillis > 0 && now - cached.addedAt > maxAgeMillis;
+    }
+
+    private void remove(long offset) {
+        Cached cached = entries.remove(offset);
+
+        if (cached != null) {
+            bytes -= cached.bytes;
+            evictions++;
+        }
+    }
+
+    private static class Cached {
+        private final ActivityLog.Activity activity;
+        private final long addedAt;
+        private final long bytes;
+
+        private Cached(ActivityLog.Activity activity, long addedAt) {
+            this.activity = activity;
+            this.addedAt = addedAt;
+            // two bytes a char
+            this.bytes = ENTRY_OVERHEAD + 2L * (activity.getKey().length() + activity.getJsonMessage().length());
+        }
+    }
+}
@@ -0,0 +1,641 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Hashes;
+import activitystreamer.util.HybridClock;
+import activitystreamer.util.MappedLongArray;
+import activitystreamer.util.SegmentLog;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * The activity history of the server, kept in an append-only SegmentLog on disk. Activities are
+ * handed out ordered by the hybrid logical clock timestamp each got on its origin server, so
+ * every server orders the same activities the same way, ties between servers broken by the
+ * activity key. The time index of the segments skips the part of the log holding only older
+ * activities.
+ * <p>
+ * The indexes which grow with the history are memory-mapped files next to the segments, rebuilt
+ * from the log on open: a hash table from the hash of a key to the offset of its activity, and
+ * for every offset the stamp of the activity and the offset of the previous activity of the same
+ * actor. The heap holds the last offset of every actor, the recently used activities in a bounded
+ * ActivityCache and the sparse index of the segments, a few bytes per INDEX_INTERVAL records.
+ *
+ * @author Huanan Li
+ */
+public class ActivityLog {
+    private static final Logger log = LogManager.getLogger();
+
+    public static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    private static final Comparator<Activity> ORDER = (a, b) -> a.timestamp != b.timestamp
+            ? Long.compare(a.timestamp, b.timestamp) : a.key.compareTo(b.key);
+
+    private final SegmentLog segments;
+    private final KeyIndex keys;
+    // for every offset its stamp, and 1 + the offset of the previous activity of its actor
+    private final MappedLongArray stamps;
+    private final MappedLongArray previousOfActor;
+    // the offset of the last activity of each actor
+    private final HashMap<String, Long> lastOfActor = new HashMap<>();
+    private final ActivityCache cache;
+    private long size = 0;
+
+    /**
+     * Open the activity log of a data directory, or a temporary one
+     *
+     * @param dataDirectory the data directory, null to keep the history for this run only
+     * @param cache         the cache of recent activities in the heap
+     * @return ActivityLog the log with the activities already stored
+     */
+    public static ActivityLog open(String dataDirectory, ActivityCache cache) throws IOException {
+        if (dataDirectory == null) {
+            return new ActivityLog(SegmentLog.temporary(SEGMENT_BYTES), cache);
+        }
+
+        return new ActivityLog(new SegmentLog(new File(dataDirectory, "activities"), SEGMENT_BYTES), cache);
+    }
+
+    public ActivityLog(SegmentLog segments, ActivityCache cache) throws IOException {
+        this.segments = segments;
+        this.cache = cache;
+
+        File directory = segments.getDirectory();
+        keys = new KeyIndex(directory);
+        stamps = new MappedLongArray(new File(directory, "stamps.idx"));
+        previousOfActor = new MappedLongArray(new File(directory, "actors.idx"));
+
+        // only the keys are decoded, the messages stay in the segments until they are used
+        IOException[] failure = new IOException[1];
+        segments.scan(0, new EveryRecord() {
+            @Override
+            public void accept(SegmentLog.Record record) {
+                try {
+                    if (failure[0] == null) {
+                        index(keyOf(record), record.getOffset(), record.getStamp());
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Add an activity unless one with the same key is stored already
+     *
+     * @param key         the key of the activity, the actor and the activity id
+     * @param timestamp   its hybrid logical clock timestamp, 0 if the sender gave none
+     * @param jsonMessage the ACTIVITY_BROADCAST message
+     * @return true if the activity was added, false if it was known or could not be written
+     */
+    public synchronized boolean add(String key, long timestamp, String jsonMessage) {
+        if (keys.get(key) >= 0) {
+            return false;
+        }
+
+        long offset;
+        try {
+            offset = segments.append(timestamp, encode(key, jsonMessage));
+            index(key, offset, timestamp);
+        } catch (IOException e) {
+            log.error("failed to store activity " + key + " : " + e);
+            return false;
+        }
+        cache.put(offset, new Activity(offset, key, timestamp, jsonMessage));
+
+        return true;
+    }
+
+    public synchronized boolean contains(String key) {
+        return keys.get(key) >= 0;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /**
+     * The message of an activity
+     *
+     * @param key the key of the activity
+     * @return String the ACTIVITY_BROADCAST message, or null if the activity is not stored
+     */
+    public synchronized String getJsonMessage(String key) {
+        long offset = keys.get(key);
+        Activity activity = offset < 0 ? null : getActivityAt(offset);
+
+        return activity == null ? null : activity.jsonMessage;
+    }
+
+    /**
+     * The activity at an offset
+     *
+     * @param offset the offset of the activity in the log
+     * @return Activity the activity, or null if there is none at the offset
+     */
+    public synchronized Activity getActivityAt(long offset) {
+        Activity activity = cache.get(offset);
+        if (activity == null) {
+            SegmentLog.Record record = segments.read(offset);
+            if (record == null) {
+                return null;
+            }
+            activity = decode(record);
+            cache.put(offset, activity);
+        }
+
+        return activity;
+    }
+
+    /*
+     * the offset of an activity in the log, -1 if it is not stored
+     */
+    public synchronized long offsetOf(String key) {
+        return keys.get(key);
+    }
+
+    /**
+     * Visit every activity in log order, decoding one at a time from the mapped segments, so the
+     * whole history never needs to fit on the heap
+     *
+     * @param action takes the activities
+     */
+    public void forEach(Consumer<Activity> action) {
+        forEach(0, action);
+    }
+
+    /**
+     * Visit the activities from an offset on in log order, like forEach. Activities added while
+     * the visit runs may or may not be visited.
+     *
+     * @param fromOffset the offset of the first activity to visit
+     * @param action     takes the activities
+     */
+    public void forEach(long fromOffset, Consumer<Activity> action) {
+        segments.scan(fromOffset, new EveryRecord() {
+            @Override
+            public void accept(SegmentLog.Record record) {
+                Activity activity = cache.peek(record.getOffset());
+                action.accept(activity != null ? activity : decode(record));
+            }
+        });
+    }
+
+    /**
+     * The activities after a timestamp, in order
+     *
+     * @param timestamp only activities stamped later are returned, 0 for all of them
+     * @param max       the most activities to return
+     * @return the activities
+     */
+    public List<Activity> since(long timestamp, int max) {
+        return page(null, timestamp, max).getActivities();
+    }
+
+    /**
+     * One page of the activities after a position in the order
+     *
+     * @param cursor the cursor of the previous page, null for the activities after since
+     * @param since  only activities stamped later are returned without a cursor, 0 for all
+     * @param limit  the most activities on the page
+     * @return Page the activities and the cursor of the next page
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public Page page(String cursor, long since, int limit) {
+        Selection selection = Selection.after(cursor, since, Long.MAX_VALUE, limit);
+        scan(selection);
+
+        return selection.toPage();
+    }
+
+    /**
+     * One page of the activities of an actor, or of everyone, in a time range. The actor index
+     * only visits the activities of the actor, newest first, the time index of the segments skips the part of
+     * the log holding only older activities. The log is not locked while the page is read, so
+     * activities stored meanwhile may or may not be on it.
+     *
+     * @param actor  the user who sent the activities, null for every user
+     * @param from   the earliest wall clock time in milliseconds, 0 for no limit
+     * @param to     the wall clock time in milliseconds the activities are before, 0 for no limit
+     * @param cursor the cursor of the previous page, null for the first page
+     * @param limit  the most activities on the page
+     * @return Page the activities and the cursor of the next page
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public Page query(String actor, long from, long to, String cursor, int limit) {
+        long until = to > 0 ? HybridClock.lowest(to) : Long.MAX_VALUE;
+        Selection selection = Selection.after(cursor, from > 0 ? HybridClock.lowest(from) - 1 : 0, until, limit);
+
+        if (actor == null) {
+            scan(selection);
+            return selection.toPage();
+        }
+
+        Long last;
+        synchronized (this) {
+            last = lastOfActor.get(actor);
+        }
+        if (last == null) {
+            return selection.toPage();
+        }
+
+        // the chain up to the last offset was written before it was published under the lock
+        for (long offset = last; offset >= 0; offset = previousOfActor.get(offset) - 1) {
+            if (selection.wants(stamps.get(offset))) {
+                Activity activity = cache.peek(offset);
+                selection.offer(activity != null ? activity : decode(segments.read(offset)));
+            }
+        }
+
+        return selection.toPage();
+    }
+
+    /*
+     * offer the activities of the log which may be selected, from where the time index says.
+     * Once the selection holds a full page only blocks with an activity ordered before its last
+     * one are read, so a page costs its own activities and the sparse index of the rest.
+     */
+    private void scan(Selection selection) {
+        segments.scan(segments.seek(selection.seekStamp()), new SegmentLog.Visitor() {
+            @Override
+            public boolean mayWant(long min, long max) {
+                return selection.mayWant(min, max);
+            }
+
+            @Override
+            public boolean wants(long stamp) {
+                return selection.wants(stamp);
+            }
+
+            @Override
+            public void accept(SegmentLog.Record record) {
+                // a scan does not count as use, it would push out every cached activity
+                Activity activity = cache.peek(record.getOffset());
+                selection.offer(activity != null ? activity : decode(record));
+            }
+        });
+    }
+
+    /*
+     * write the activities added so far through to the disk
+     */
+    public void flush() {
+        segments.flush();
+    }
+
+    public ActivityCache getCache() {
+        return cache;
+    }
+
+    public File getDirectory() {
+        return segments.getDirectory();
+    }
+
+    /*
+     * called with the activity log locked, or from the constructor
+     */
+    private void index(String key, long offset, long timestamp) throws IOException {
+        keys.put(key, offset);
+        stamps.set(offset, timestamp);
+
+        Long previous = lastOfActor.get(actorOf(key));
+        previousOfActor.set(offset, previous == null ? 0 : previous + 1);
+        lastOfActor.put(actorOf(key), offset);
+        size++;
+    }
+
+    /*
+     * the key of the activity at an offset, read from the log without its message
+     */
+    private String keyAt(long offset) {
+        SegmentLog.Record record = segments.read(offset);
+
+        return record == null ? null : keyOf(record);
+    }
+
+    /*
+     * the key of an activity is the actor, a comma and the activity id, which has no comma
+     */
+    private static String actorOf(String key) {
+        int comma = key.lastIndexOf(',');
+
+        return comma < 0 ? key : key.substring(0, comma);
+    }
+
+    /*
+     * the timestamp in base 36 and the key of the last activity on a page
+     */
+    private static String cursorOf(Activity activity) {
+        return Long.toString(activity.timestamp, 36) + ":" + activity.key;
+    }
+
+    /*
+     * a record is the length of the key, the key and the message, in UTF-8
+     */
+    private static byte[] encode(String activityKey, String jsonMessage) {
+        byte[] key = activityKey.getBytes(StandardCharsets.UTF_8);
+        byte[] message = jsonMessage.getBytes(StandardCharsets.UTF_8);
+
+        return ByteBuffer.allocate(4 + key.length + message.length)
+                .putInt(key.length).put(key).put(message).array();
+    }
+
+    private static Activity decode(SegmentLog.Record record) {
+        ByteBuffer payload = record.getPayload();
+        int keyLength = payload.getInt(0);
+        String key = utf8(payload, 4, keyLength);
+        String message = utf8(payload, 4 + keyLength, payload.limit() - 4 - keyLength);
+
+        return new Activity(record.getOffset(), key, record.getStamp(), message);
+    }
+
+    private static String keyOf(SegmentLog.Record record) {
+        ByteBuffer payload = record.getPayload();
+
+        return utf8(payload, 4, payload.getInt(0));
+    }
+
+    private static String utf8(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer in = buffer.duplicate();
+        in.position(position);
+        in.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * picks the first limit activities after a position in the order and stamped before until,
+     * keeping the limit + 1 smallest seen so far in a heap with the largest on top
+     */
+    private static class Selection {
+        private final long timestamp;
+        private final String afterKey;
+        private final long until;
+        private final int limit;
+        // from the very start, so activities without a timestamp are included too
+        private final boolean all;
+        private final PriorityQueue<Activity> smallest = new PriorityQueue<>(Collections.reverseOrder(ORDER));
+
+        private Selection(long timestamp, String afterKey, long until, int limit) {
+            this.timestamp = timestamp;
+            this.afterKey = afterKey;
+            this.until = until;
+            this.limit = limit;
+            this.all = afterKey == null && timestamp <= 0;
+        }
+
+        /*
+         * after the cursor if there is one and it is not before since, otherwise after since
+         */
+        private static Selection after(String cursor, long since, long until, int limit) {
+            if (cursor != null) {
+                int colon = cursor.indexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("malformed cursor " + cursor);
+                }
+
+                long timestamp = Long.parseLong(cursor.substring(0, colon), 36);
+                // since 0 or less starts before every activity, even the ones stamped 0
+                if (timestamp > since || since <= 0) {
+                    return new Selection(timestamp, cursor.substring(colon + 1), until, limit);
+                }
+            }
+
+            return new Selection(since, null, until, limit);
+        }
+
+        /*
+         * every activity this can select is stamped after the returned stamp
+         */
+        private long seekStamp() {
+            // with a key, activities stamped exactly timestamp may still come after it
+            return afterKey == null ? timestamp : timestamp - 1;
+        }
+
+        /*
+         * whether an activity stamped from min to max may be selected
+         */
+        private boolean mayWant(long min, long max) {
+            if (min >= until) {
+                return false;
+            }
+            if (!all && (max < timestamp || (max == timestamp && afterKey == null))) {
+                return false;
+            }
+
+            return smallest.size() <= limit || min <= smallest.peek().timestamp;
+        }
+
+        /*
+         * whether an activity with the stamp may be selected, checked before it is read
+         */
+        private boolean wants(long stamp) {
+            if (stamp >= until) {
+                return false;
+            }
+            if (!all && (stamp < timestamp || (stamp == timestamp && afterKey == null))) {
+                return false;
+            }
+
+            return smallest.size() <= limit || stamp <= smallest.peek().timestamp;
+        }
+
+        private void offer(Activity activity) {
+            if (!all && activity.timestamp == timestamp && afterKey != null && activity.key.compareTo(afterKey) <= 0) {
+                return;
+            }
+
+            smallest.add(activity);
+            if (smallest.size() > (long) limit + 1) {
+                smallest.poll();
+            }
+        }
+
+        private Page toPage() {
+            ArrayList<Activity> result = new ArrayList<>(smallest);
+            // the log is in arrival order, which differs between servers
+            Collections.sort(result, ORDER);
+
+            boolean more = result.size() > limit;
+            List<Activity> activities = more ? result.subList(0, limit) : result;
+            String next = activities.isEmpty() ? null : cursorOf(activities.get(activities.size() - 1));
+
+            return new Page(activities, next, more);
+        }
+    }
+
+    /*
+     * a scan of the whole log
+     */
+    private abstract static class EveryRecord implements SegmentLog.Visitor {
+        @Override
+        public boolean mayWant(long min, long max) {
+            return true;
+        }
+
+        @Override
+        public boolean wants(long stamp) {
+            return true;
+        }
+    }
+
+    /*
+     * an open addressing hash table in a mapped file, two longs a slot: the 64 bit hash of a key
+     * and 1 + the offset of its activity, 0 for a free slot. A hash equal to the one looked up is
+     * checked against the key in the log, so a collision costs a read but never a wrong answer.
+     * Used with the activity log locked.
+     */
+    private class KeyIndex {
+        private static final int INITIAL_SLOTS = 1 << 16;
+
+        private final File directory;
+        private MappedLongArray slots;
+        private long capacity;
+        private long used = 0;
+        private int generation = 0;
+
+        private KeyIndex(File directory) throws IOException {
+            this.directory = directory;
+            capacity = INITIAL_SLOTS;
+            slots = new MappedLongArray(fileOf(generation));
+        }
+
+        /*
+         * the offset of the activity with the key, -1 if there is none
+         */
+        private long get(String key) {
+            long hash = hashOf(key);
+
+            for (long slot = hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+                long offset = slots.get(slot * 2 + 1) - 1;
+                if (offset < 0) {
+                    return -1;
+                }
+                if (slots.get(slot * 2) == hash && key.equals(keyAt(offset))) {
+                    return offset;
+                }
+            }
+        }
+
+        /*
+         * add a key known not to be in the table
+         */
+        private void put(String key, long offset) throws IOException {
+            if ((used + 1) * 2 > capacity) {
+                resize();
+            }
+            insert(slots, capacity, hashOf(key), offset);
+            used++;
+        }
+
+        private void resize() throws IOException {
+            long grown = capacity * 2;
+            MappedLongArray table = new MappedLongArray(fileOf(generation + 1));
+
+            for (long slot = 0; slot < capacity; slot++) {
+                long offset = slots.get(slot * 2 + 1) - 1;
+                if (offset >= 0) {
+                    insert(table, grown, slots.get(slot * 2), offset);
+                }
+            }
+
+            slots.delete();
+            slots = table;
+            capacity = grown;
+            generation++;
+        }
+
+        private void insert(MappedLongArray table, long tableSlots, long hash, long offset) throws IOException {
+            long slot = hash & (tableSlots - 1);
+            while (table.get(slot * 2 + 1) != 0) {
+                slot = (slot + 1) & (tableSlots - 1);
+            }
+            table.set(slot * 2, hash);
+            table.set(slot * 2 + 1, offset + 1);
+        }
+
+        private File fileOf(int generation) {
+            return new File(directory, "keys." + generation + ".idx");
+        }
+
+        private long hashOf(String key) {
+            return Hashes.mix(Hashes.hash(0, key));
+        }
+    }
+
+    public static class Page {
+        private final List<Activity> activities;
+        private final String cursor;
+        private final boolean more;
+
+        private Page(List<Activity> activities, String cursor, boolean more) {
+            this.activities = activities;
+            this.cursor = cursor;
+            this.more = more;
+        }
+
+        public List<Activity> getActivities() {
+            return activities;
+        }
+
+        /*
+         * the cursor of the next page, null if this page is empty
+         */
+        public String getCursor() {
+            return cursor;
+        }
+
+        public boolean hasMore() {
+            return more;
+        }
+    }
+
+    public static class Activity {
+        private final long offset;
+        private final String key;
+        private final long timestamp;
+        private final String jsonMessage;
+
+        private Activity(long offset, String key, long timestamp, String jsonMessage) {
+            this.offset = offset;
+            this.key = key;
+            this.timestamp = timestamp;
+            this.jsonMessage = jsonMessage;
+        }
+
+        /*
+         * the position of the activity in the log, the order it was stored in here
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getJsonMessage() {
+            return jsonMessage;
+        }
+    }
+}
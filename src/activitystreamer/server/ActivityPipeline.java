@@ -0,0 +1,204 @@
+package activitystreamer.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * The activities made on this server, passed from the threads which accept them to a few stages
+ * over a ring of preallocated entries. Every stage has a thread of its own and follows the ring
+ * independently, taking all entries published since its last look as one batch, so a slow stage
+ * falls behind by whole batches without holding up the others. An entry is only reused once
+ * every stage is past it; a publisher finding the ring full waits for the slowest stage.
+ *
+ * @author Huanan Li
+ */
+public class ActivityPipeline {
+    private static final Logger log = LogManager.getLogger();
+
+    // entries in the ring, a power of two
+    private static final int RING_SIZE = 1024;
+    // how long a publisher waits before looking at a full ring again
+    private static final long FULL_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Entry[] ring = new Entry[RING_SIZE];
+    private final int mask = RING_SIZE - 1;
+    // the last sequence claimed by a publisher
+    private final AtomicLong claimed = new AtomicLong(-1);
+    // the sequence last published into each entry, so stages see publishers finishing out of order
+    private final AtomicLongArray published = new AtomicLongArray(RING_SIZE);
+    private final Stage[] stages;
+    // run by a publisher waiting for a full ring, returns whether it did any work
+    private volatile BooleanSupplier whileFull = () -> false;
+
+    /**
+     * Start the stages, each given the entries in the order they were claimed
+     *
+     * @param names    the names of the stage threads
+     * @param handlers the stages, in the same order; a handler must not keep the entries
+     */
+    @SafeVarargs
+    public ActivityPipeline(String[] names, Consumer<List<Entry>>... handlers) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Entry();
+            published.set(i, -1);
+        }
+
+        stages = new Stage[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            stages[i] = new Stage(names[i], handlers[i]);
+        }
+        for (Stage stage : stages) {
+            stage.start();
+        }
+    }
+
+    /*
+     * what a publisher does while it waits for a full ring, for publishers a stage may be waiting for
+     */
+    public void setWhileFull(BooleanSupplier whileFull) {
+        this.whileFull = whileFull;
+    }
+
+    /**
+     * Put an activity on the ring, waiting while the ring is full. The activities published by
+     * one thread reach every stage in the order they were published.
+     *
+     * @param key   the key of the activity, the actor and the activity id
+     * @param hlc   its hybrid logical clock timestamp
+     * @param json  the ACTIVITY_BROADCAST message
+     * @param frame the message from Frames.encode
+     */
+    public void publish(String key, long hlc, String json, ByteBuffer frame) {
+        long sequence = claimed.incrementAndGet();
+
+        // the entry is free once the slowest stage is past its use a lap ago
+        while (sequence - RING_SIZE > slowest()) {
+            if (!whileFull.getAsBoolean()) {
+                LockSupport.parkNanos(this, FULL_RETRY_NANOS);
+            }
+        }
+
+        Entry entry = ring[(int) sequence & mask];
+        entry.key = key;
+        entry.hlc = hlc;
+        entry.json = json;
+        entry.frame = frame;
+        published.set((int) sequence & mask, sequence);
+
+        for (Stage stage : stages) {
+            stage.wake();
+        }
+    }
+
+    private long slowest() {
+        long min = Long.MAX_VALUE;
+        for (Stage stage : stages) {
+            min = Math.min(min, stage.done.get());
+        }
+
+        return min;
+    }
+
+    /**
+     * An activity on the ring, valid only while a handler is given it
+     */
+    public static class Entry {
+        private String key;
+        private long hlc;
+        private String json;
+        private ByteBuffer frame;
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getHlc() {
+            return hlc;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        public ByteBuffer getFrame() {
+            return frame;
+        }
+    }
+
+    /*
+     * one stage, handing the entries published since its last batch to its handler
+     */
+    private class Stage extends Thread {
+        private final Consumer<List<Entry>> handler;
+        // the last sequence handled, read by publishers waiting for a free entry
+        private final AtomicLong done = new AtomicLong(-1);
+        private final ArrayList<Entry> batch = new ArrayList<>();
+        private volatile boolean sleeping = false;
+
+        private Stage(String name, Consumer<List<Entry>> handler) {
+            super(name);
+            setDaemon(true);
+            this.handler = handler;
+        }
+
+        private void wake() {
+            if (sleeping) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        /*
+         * the entries after next which are published, without a gap, up to a lap of the ring
+         */
+        private long available(long next) {
+            long last = next - 1;
+            while (last + 1 - next < RING_SIZE && published.get((int) (last + 1) & mask) == last + 1) {
+                last++;
+            }
+
+            return last;
+        }
+
+        @Override
+        public void run() {
+            long next = 0;
+
+            while (true) {
+                long last = available(next);
+
+                if (last < next) {
+                    // a publisher publishes first and then looks at sleeping, this stage the other way round
+                    sleeping = true;
+                    if (available(next) < next) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                    continue;
+                }
+
+                for (long sequence = next; sequence <= last; sequence++) {
+                    batch.add(ring[(int) sequence & mask]);
+                }
+                try {
+                    handler.accept(batch);
+                } catch (RuntimeException e) {
+                    log.error(getName() + " failed on " + batch.size() + " activities: " + e, e);
+                }
+                batch.clear();
+
+                done.set(last);
+                next = last + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Connection;
+import activitystreamer.util.OutboundQueue;
+import activitystreamer.util.Settings;
+import activitystreamer.util.SpscQueue;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * The server split into shards, each a thread of its own which processes the messages of the
+ * connections it was given and owns the clients among them; a connection which turns out to be a
+ * server is moved to the worker pool. Only the owning shard queues frames for a client, so
+ * fanning an activity out takes no lock shared between shards: a shard hands the frame to every
+ * other shard over a single producer, single consumer queue, and each of them queues it for its
+ * own clients. A shard never waits for another: once its frames for one back up past
+ * OVERFLOW_CAPACITY, the slow consumer policy is applied to that shard as a whole, which drops
+ * the oldest or the newest frame for it, or with disconnect has it disconnect its clients, which
+ * all missed the frame. A thread which is not a shard but broadcasts a lot, such as a stage of
+ * the ActivityPipeline, gets a Feeder with a queue of the same kind into every shard; other
+ * threads hand frames over in a task.
+ *
+ * @author Huanan Li
+ */
+public class ClientShards {
+    private static final Logger log = LogManager.getLogger();
+
+    // frames one shard can have waiting for another before they wait in the sender's overflow
+    private static final int QUEUE_CAPACITY = 1024;
+    // frames which can wait in the overflow before the slow consumer policy drops them
+    private static final int OVERFLOW_CAPACITY = 4 * QUEUE_CAPACITY;
+    // tasks and frames handled before the queues of the other shards are looked at again
+    private static final int BATCH = 64;
+    // how long a shard with frames it could not hand over yet, or a feeder, sleeps before trying again
+    private static final long OVERFLOW_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Shard[] shards;
+    private final AtomicInteger next = new AtomicInteger();
+    // the shard each client is owned by
+    private final ConcurrentHashMap<Connection, Shard> owners = new ConcurrentHashMap<>();
+    // closes the clients which fell too far behind
+    private final Consumer<ArrayList<Connection>> slowConsumers;
+
+    /**
+     * Start the shards
+     *
+     * @param count         the number of shards
+     * @param slowConsumers called on a shard with the clients the slow consumer policy disconnects
+     */
+    public ClientShards(int count, Consumer<ArrayList<Connection>> slowConsumers) {
+        this.slowConsumers = slowConsumers;
+
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i);
+        }
+        for (Shard shard : shards) {
+            shard.start();
+        }
+
+        log.info("started " + count + " shards");
+    }
+
+    /*
+     * the shard a new connection is processed on
+     */
+    public Executor next() {
+        return shards[Math.abs(next.getAndIncrement() % shards.length)];
+    }
+
+    /**
+     * Add a client to the shard processing it, or to any shard if it is not processed on one
+     *
+     * @param con the client
+     */
+    public void attach(Connection con) {
+        Shard shard = current();
+        if (shard == null) {
+            shard = (Shard) next();
+        }
+
+        if (owners.putIfAbsent(con, shard) == null) {
+            Shard owner = shard;
+            owner.runOnShard(() -> owner.clients.add(con));
+        }
+    }
+
+    /*
+     * remove a client from the shard owning it
+     */
+    public void detach(Connection con) {
+        Shard owner = owners.remove(con);
+
+        if (owner != null) {
+            owner.runOnShard(() -> owner.clients.remove(con));
+        }
+    }
+
+    /**
+     * Queue a frame for every client, each shard queueing it for its own clients. The frames
+     * handed over by one thread reach every client in the order they were handed over.
+     *
+     * @param frame a frame from Frames.encode
+     */
+    public void broadcast(ByteBuffer frame) {
+        Shard shard = current();
+
+        if (shard == null) {
+            for (Shard other : shards) {
+                other.execute(() -> other.deliver(frame));
+            }
+            return;
+        }
+
+        for (Shard other : shards) {
+            if (other != shard) {
+                shard.handOver(other, frame);
+            }
+        }
+        shard.deliver(frame);
+    }
+
+    /*
+     * on a shard, deliver the frames handed to it; a shard waiting for something which may wait
+     * for the shards calls this meanwhile. False on other threads or if there were none.
+     */
+    public boolean receive() {
+        Shard shard = current();
+
+        return shard != null && shard.receiveFrames();
+    }
+
+    /*
+     * a new feeder, to be used by one thread only
+     */
+    public Feeder newFeeder() {
+        return new Feeder();
+    }
+
+    private Shard current() {
+        Thread thread = Thread.currentThread();
+
+        return thread instanceof Shard && ((Shard) thread).group() == this ? (Shard) thread : null;
+    }
+
+    /*
+     * one shard: tasks from any thread, frames from the other shards, and its clients
+     */
+    private class Shard extends Thread implements Executor {
+        private final int index;
+        // connection messages and frames from threads which are not shards
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // frames from each other shard, the lane at [i] only filled by shard i
+        private final Lane[] inbound;
+        // lanes into other shards with frames in their overflow
+        private int overflowing = 0;
+        // frames from the feeders, each queue filled by one of them
+        private final CopyOnWriteArrayList<SpscQueue<ByteBuffer>> fed = new CopyOnWriteArrayList<>();
+        // only touched by this shard
+        private final ArrayList<Connection> clients = new ArrayList<>();
+        private volatile boolean sleeping = false;
+
+        private Shard(int index) {
+            super("shard-" + index);
+            setDaemon(true);
+            this.index = index;
+
+            inbound = new Lane[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                inbound[i] = new Lane();
+            }
+        }
+
+        private ClientShards group() {
+            return ClientShards.this;
+        }
+
+        /*
+         * runs the task on this shard, after the tasks queued before it
+         */
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            wake();
+        }
+
+        private void runOnShard(Runnable task) {
+            if (Thread.currentThread() == this) {
+                task.run();
+            } else {
+                execute(task);
+            }
+        }
+
+        private void wake() {
+            if (sleeping) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        // called on this shard
+        private void handOver(Shard other, ByteBuffer frame) {
+            Lane lane = other.inbound[index];
+            ArrayDeque<ByteBuffer> waiting = lane.overflow;
+
+            if (waiting.size() >= OVERFLOW_CAPACITY) {
+                retryOverflow();
+            }
+            // waiting for the other shard would stall the clients of this one
+            if (waiting.size() >= OVERFLOW_CAPACITY) {
+                if (!lane.dropping) {
+                    lane.dropping = true;
+                    log.warn(other.getName() + " is " + OVERFLOW_CAPACITY + " frames behind " + getName()
+                            + ", applying the slow consumer policy to it");
+                }
+
+                switch (Settings.getSlowConsumerPolicy()) {
+                    case DROP_OLDEST:
+                        waiting.poll();
+                        break;
+                    case DISCONNECT:
+                        lane.lost.set(true);
+                        other.wake();
+                        return;
+                    default:
+                        // drop-newest
+                        other.wake();
+                        return;
+                }
+            }
+
+            // frames behind ones still waiting wait too, so they keep their order
+            if (!waiting.isEmpty() || !lane.queue.offer(frame)) {
+                if (waiting.isEmpty()) {
+                    overflowing++;
+                }
+                waiting.add(frame);
+            }
+            other.wake();
+        }
+
+        // called on this shard, true if every waiting frame was handed over
+        private boolean retryOverflow() {
+            if (overflowing == 0) {
+                return true;
+            }
+
+            for (Shard other : shards) {
+                Lane lane = other.inbound[index];
+                ArrayDeque<ByteBuffer> waiting = lane.overflow;
+                boolean moved = false;
+
+                while (!waiting.isEmpty() && lane.queue.offer(waiting.peek())) {
+                    waiting.poll();
+                    moved = true;
+                }
+                if (moved) {
+                    if (waiting.isEmpty()) {
+                        overflowing--;
+                        lane.dropping = false;
+                    }
+                    other.wake();
+                }
+            }
+
+            return overflowing == 0;
+        }
+
+        // called on this shard
+        private void deliver(ByteBuffer frame) {
+            ArrayList<Connection> slow = null;
+
+            for (Connection con : clients) {
+                if (con.offerFrame(frame, Settings.getSlowConsumerPolicy()) == OutboundQueue.DISCONNECT) {
+                    if (slow == null) {
+                        slow = new ArrayList<>();
+                    }
+                    slow.add(con);
+                }
+            }
+
+            if (slow != null) {
+                slowConsumers.accept(slow);
+            }
+        }
+
+        private boolean hasWork() {
+            if (!tasks.isEmpty()) {
+                return true;
+            }
+            for (Lane lane : inbound) {
+                if (!lane.queue.isEmpty()) {
+                    return true;
+                }
+            }
+            for (SpscQueue<ByteBuffer> queue : fed) {
+                if (!queue.isEmpty()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // called on this shard, true if any frame was taken
+        private boolean receiveFrames() {
+            boolean worked = false;
+
+            for (Lane lane : inbound) {
+                worked |= receiveFrames(lane.queue);
+
+                // every client here missed a frame, as a client whose own queue is full would
+                if (lane.lost.getAndSet(false) && !clients.isEmpty()) {
+                    log.warn(getName() + " fell too far behind, disconnecting its " + clients.size() + " clients");
+                    slowConsumers.accept(new ArrayList<>(clients));
+                    worked = true;
+                }
+            }
+            for (SpscQueue<ByteBuffer> queue : fed) {
+                worked |= receiveFrames(queue);
+            }
+
+            return worked;
+        }
+
+        private boolean receiveFrames(SpscQueue<ByteBuffer> queue) {
+            boolean worked = false;
+
+            ByteBuffer frame;
+            for (int i = 0; i < BATCH && (frame = queue.poll()) != null; i++) {
+                worked = true;
+                try {
+                    deliver(frame);
+                } catch (RuntimeException e) {
+                    log.error("delivery failed on " + getName() + ": " + e, e);
+                }
+            }
+
+            return worked;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                boolean worked = false;
+
+                Runnable task;
+                for (int i = 0; i < BATCH && (task = tasks.poll()) != null; i++) {
+                    worked = true;
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.error("task failed on " + getName() + ": " + e, e);
+                    }
+                }
+
+                worked |= receiveFrames();
+
+                boolean handedOver = retryOverflow();
+
+                if (!worked) {
+                    // a producer queues first and then looks at sleeping, this shard the other way round
+                    sleeping = true;
+                    if (!hasWork()) {
+                        if (handedOver) {
+                            LockSupport.park(this);
+                        } else {
+                            LockSupport.parkNanos(this, OVERFLOW_RETRY_NANOS);
+                        }
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands frames from one thread which is not a shard to every shard over a queue into each,
+     * without going through their task queues. A full queue makes the feeder wait for its shard.
+     */
+    public class Feeder {
+        // the queue into each shard, by index
+        private final ArrayList<SpscQueue<ByteBuffer>> queues = new ArrayList<>();
+
+        private Feeder() {
+            for (Shard shard : shards) {
+                SpscQueue<ByteBuffer> queue = new SpscQueue<>(QUEUE_CAPACITY);
+                queues.add(queue);
+                shard.fed.add(queue);
+            }
+        }
+
+        /**
+         * Queue a frame for every client. The frames reach every client in the order they were
+         * handed over.
+         *
+         * @param frame a frame from Frames.encode
+         */
+        public void broadcast(ByteBuffer frame) {
+            for (Shard shard : shards) {
+                SpscQueue<ByteBuffer> queue = queues.get(shard.index);
+
+                while (!queue.offer(frame)) {
+                    shard.wake();
+                    LockSupport.parkNanos(this, OVERFLOW_RETRY_NANOS);
+                }
+                shard.wake();
+            }
+        }
+    }
+
+    /*
+     * the frames from one shard to another: the queue the receiver takes them from, and the
+     * ones which did not fit it yet, oldest first, only touched by the sender; lost tells the
+     * receiver a frame was dropped with the disconnect policy
+     */
+    private static class Lane {
+        private final SpscQueue<ByteBuffer> queue = new SpscQueue<>(QUEUE_CAPACITY);
+        private final ArrayDeque<ByteBuffer> overflow = new ArrayDeque<>();
+        private final AtomicBoolean lost = new AtomicBoolean();
+        // the policy was applied since the overflow was last empty, only touched by the sender
+        private boolean dropping = false;
+    }
+}
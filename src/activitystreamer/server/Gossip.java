@@ -0,0 +1,130 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Connection;
+import activitystreamer.util.Settings;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Dissemination of activity broadcasts between servers. Every activity carries a unique id; the
+ * first copy a server sees is delivered and passed on, later copies are dropped, so cycles
+ * between servers cannot make an activity circulate. An activity is passed on to every other
+ * peer, or with a gossip fanout to that many random peers. Also keeps the metrics of how long
+ * activities took to reach this server. Safe to use from any thread.
+ *
+ * @author Huanan Li
+ */
+public class Gossip {
+    private final Random random = new Random();
+    // ids of the activities seen in the last few minutes
+    private final SeenSet seen = new SeenSet();
+
+    // ids of activities made here are a random prefix, unique to this run, and a sequence number
+    private final String idPrefix = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36) + ".";
+    private long idSeq = 0;
+
+    private long delivered = 0;
+    private long duplicates = 0;
+    private long totalDelay = 0;
+    private long maxDelay = 0;
+
+    /**
+     * A new, globally unique activity id, already marked as seen so copies coming back are
+     * dropped
+     *
+     * @return String the id, at most 13 characters of prefix and the sequence number in base 36
+     */
+    public synchronized String newActivityId() {
+        String id = idPrefix + Long.toString(++idSeq, 36);
+        seen.add(id);
+
+        return id;
+    }
+
+    /**
+     * Record an activity id
+     *
+     * @param id the id of the activity
+     * @return true the first time the id is seen, false for a duplicate
+     */
+    public synchronized boolean markSeen(String id) {
+        if (!seen.add(id)) {
+            duplicates++;
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Check an activity id without recording it, to drop a duplicate before reading the rest
+     * of its message
+     *
+     * @param id the id of the activity
+     * @return true if the id was seen already
+     */
+    public synchronized boolean isDuplicate(String id) {
+        if (seen.contains(id)) {
+            duplicates++;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Record the first arrival of an activity from another server
+     *
+     * @param sentAt when the origin server sent it, 0 if unknown
+     */
+    public synchronized void recordDelivery(long sentAt) {
+        if (sentAt <= 0) {
+            return;
+        }
+
+        long delay = Math.max(0, System.currentTimeMillis() - sentAt);
+        delivered++;
+        totalDelay += delay;
+        maxDelay = Math.max(maxDelay, delay);
+    }
+
+    /**
+     * The peers to pass an activity on to
+     *
+     * @param peers   the connected servers
+     * @param current the server the activity came from, null if it was made here
+     * @return every other peer, or with a gossip fanout that many of them picked at random
+     */
+    public List<Connection> choosePeers(List<Connection> peers, Connection current) {
+        ArrayList<Connection> chosen = new ArrayList<>(peers.size());
+
+        for (Connection con : peers) {
+            if (con != current) {
+                chosen.add(con);
+            }
+        }
+
+        int fanout = Settings.getGossipFanout();
+        if (fanout > 0 && chosen.size() > fanout) {
+            // a partial shuffle is enough to pick fanout peers
+            for (int i = 0; i < fanout; i++) {
+                Collections.swap(chosen, i, i + random.nextInt(chosen.size() - i));
+            }
+
+            return chosen.subList(0, fanout);
+        }
+
+        return chosen;
+    }
+
+    public synchronized String getStats() {
+        return "activities received " + delivered + ", duplicates dropped " + duplicates
+                + ", mean delay " + (delivered == 0 ? 0 : totalDelay / delivered) + " ms, max delay " + maxDelay + " ms";
+    }
+}
@@ -0,0 +1,249 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Hashes;
+import activitystreamer.util.MappedLongArray;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A hash tree over the replicated state, used to find what two servers disagree on without
+ * exchanging it. Every entry is hashed, and the tree is FANOUT wide: a node at level d holds the
+ * entries whose hash starts with its d digits of BITS bits. A node's hash combines the hashes of
+ * its entries independent of their order, so it is kept up to date in O(depth) per added entry,
+ * and does not depend on how deep the tree is; two servers with trees of different depths agree
+ * on every node both have.
+ * <p>
+ * Nodes are numbered level by level, node 0 is the root and the children of node n are the nodes
+ * FANOUT * n + 1 to FANOUT * n + FANOUT. The leaves are at the depth of the tree, which grows
+ * with the entries so a leaf holds at most about LEAF_ENTRIES of them, and so do the entries
+ * resent for a difference: the tree starts MIN_DEPTH deep and goes a level deeper whenever the
+ * entries reach LEAF_ENTRIES per leaf, up to MAX_DEPTH. The entries of a leaf are the versions of
+ * the ReplicationLog, chained from the last one through a memory-mapped array holding the
+ * previous version in the same leaf of every version, so only the heads of the chains are on the
+ * heap; another holds the hash of every version, to chain them again when the tree deepens. Safe
+ * to use from any thread.
+ *
+ * @author Huanan Li
+ */
+public class MerkleTree {
+    private static final Logger log = LogManager.getLogger();
+
+    public static final int BITS = 4;
+    public static final int FANOUT = 1 << BITS;
+    public static final int MIN_DEPTH = 2;
+    public static final int MAX_DEPTH = 6;
+    public static final int LEAF_ENTRIES = 32;
+    // the last node of a tree MAX_DEPTH deep
+    private static final int LAST_NODE = firstNodeOf(MAX_DEPTH + 1) - 1;
+
+    // the hashes of the nodes of every level, down to the leaves
+    private long[][] levels;
+    // the last version in each leaf and the number of versions in it
+    private long[] heads;
+    private int[] sizes;
+    private int depth = MIN_DEPTH;
+    private long version = 0;
+    // for every version, the one before it in its leaf, 0 for none, and the hash of its entry
+    private final MappedLongArray previous;
+    private final MappedLongArray hashes;
+
+    /**
+     * @param previous where the chains of the leaves are kept, empty
+     * @param hashes   where the hashes of the entries are kept, empty
+     */
+    public MerkleTree(MappedLongArray previous, MappedLongArray hashes) {
+        this.previous = previous;
+        this.hashes = hashes;
+
+        levels = new long[MIN_DEPTH + 1][];
+        for (int d = 0; d <= MIN_DEPTH; d++) {
+            levels[d] = new long[1 << (BITS * d)];
+        }
+        heads = new long[levels[MIN_DEPTH].length];
+        sizes = new int[levels[MIN_DEPTH].length];
+    }
+
+    /**
+     * Add an entry
+     *
+     * @param version the version of the entry, larger than those added before
+     * @param type    its type
+     * @param key     its key
+     * @param value   the secret or activity message it has
+     */
+    public synchronized void add(long version, int type, String key, String value) {
+        long hash = Hashes.mix(Hashes.hash(Hashes.hash(type, key), value));
+
+        for (int d = 0; d <= depth; d++) {
+            levels[d][indexOf(hash, d)] ^= hash;
+        }
+        try {
+            hashes.set(version - 1, hash);
+        } catch (IOException e) {
+            // the tree still hashes right until it deepens, the entry then drops out of it
+            log.error("failed to record the hash of version " + version + ": " + e);
+        }
+        chain(version, indexOf(hash, depth));
+        this.version = version;
+
+        if (depth < MAX_DEPTH && version >= (long) LEAF_ENTRIES * heads.length) {
+            deepen();
+        }
+    }
+
+    /*
+     * the hash of the whole tree, equal on two servers holding the same entries
+     */
+    public synchronized long getRoot() {
+        return levels[0][0];
+    }
+
+    /**
+     * The hashes of the children of an inner node
+     *
+     * @param node a node of the tree
+     * @return FANOUT hashes, or null if the node is a leaf here or not a node
+     */
+    public synchronized long[] getChildHashes(int node) {
+        int level = levelOf(node);
+        if (level < 0 || level >= depth) {
+            return null;
+        }
+
+        int first = (node - firstNodeOf(level)) * FANOUT;
+
+        return Arrays.copyOfRange(levels[level + 1], first, first + FANOUT);
+    }
+
+    /*
+     * whether a node is a leaf of this tree, or below one
+     */
+    public synchronized boolean isLeaf(int node) {
+        return levelOf(node) >= depth;
+    }
+
+    /**
+     * The versions under a node, at any level, in order
+     *
+     * @param node a node of the tree
+     * @return the versions, none if it is not a node
+     */
+    public synchronized long[] getBucket(int node) {
+        int level = levelOf(node);
+        if (level < 0) {
+            return new long[0];
+        }
+
+        int index = node - firstNodeOf(level);
+        if (level > depth) {
+            // below a leaf, the entries of the leaf under the node
+            long[] leaf = chainOf(index >>> (BITS * (level - depth)));
+            int n = 0;
+            for (long v : leaf) {
+                if (indexOf(hashes.get(v - 1), level) == index) {
+                    leaf[n++] = v;
+                }
+            }
+
+            return Arrays.copyOf(leaf, n);
+        }
+
+        // the leaves under the node, merged
+        int shift = BITS * (depth - level);
+        int total = 0;
+        for (int leaf = index << shift; leaf < (index + 1) << shift; leaf++) {
+            total += sizes[leaf];
+        }
+        long[] versions = new long[total];
+        int n = 0;
+        for (int leaf = index << shift; leaf < (index + 1) << shift; leaf++) {
+            long[] chain = chainOf(leaf);
+            System.arraycopy(chain, 0, versions, n, chain.length);
+            n += chain.length;
+        }
+        Arrays.sort(versions, 0, n);
+
+        return n == versions.length ? versions : Arrays.copyOf(versions, n);
+    }
+
+    /*
+     * whether a number names a node of a tree MAX_DEPTH deep
+     */
+    public static boolean isNode(int node) {
+        return node >= 0 && node <= LAST_NODE;
+    }
+
+    // the versions in a leaf, in order
+    private long[] chainOf(int leaf) {
+        long[] versions = new long[sizes[leaf]];
+        int i = versions.length;
+
+        for (long v = heads[leaf]; v > 0 && i > 0; v = previous.get(v - 1)) {
+            versions[--i] = v;
+        }
+
+        return i == 0 ? versions : Arrays.copyOfRange(versions, i, versions.length);
+    }
+
+    private void chain(long version, int leaf) {
+        try {
+            previous.set(version - 1, heads[leaf]);
+        } catch (IOException e) {
+            // the leaf still hashes right, it only loses its older entries
+            log.error("failed to record version " + version + " in leaf " + leaf + ": " + e);
+        }
+        heads[leaf] = version;
+        sizes[leaf]++;
+    }
+
+    /*
+     * add a level of leaves, chaining every version again from its hash; amortised over the
+     * versions added since the last time, like growing an array
+     */
+    private void deepen() {
+        depth++;
+
+        long[][] grown = Arrays.copyOf(levels, depth + 1);
+        grown[depth] = new long[1 << (BITS * depth)];
+        heads = new long[grown[depth].length];
+        sizes = new int[grown[depth].length];
+        for (long v = 1; v <= version; v++) {
+            long hash = hashes.get(v - 1);
+            if (hash == 0) {
+                // its hash was never recorded
+                continue;
+            }
+            grown[depth][indexOf(hash, depth)] ^= hash;
+            chain(v, indexOf(hash, depth));
+        }
+        levels = grown;
+
+        log.info("hash tree deepened to " + depth + " levels, " + heads.length + " leaves for " + version + " entries");
+    }
+
+    // the node of a level an entry hash falls in
+    private static int indexOf(long hash, int level) {
+        return level == 0 ? 0 : (int) (hash >>> (64 - BITS * level));
+    }
+
+    private static int firstNodeOf(int level) {
+        return ((1 << (BITS * level)) - 1) / (FANOUT - 1);
+    }
+
+    // the level of a node, -1 if it is not one
+    private static int levelOf(int node) {
+        if (node < 0) {
+            return -1;
+        }
+        for (int level = 0; level <= MAX_DEPTH; level++) {
+            if (node < firstNodeOf(level + 1)) {
+                return level;
+            }
+        }
+
+        return -1;
+    }
+}
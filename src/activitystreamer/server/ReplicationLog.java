@@ -0,0 +1,236 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Connection;
+import activitystreamer.util.MappedLongArray;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * The ordered log of every change to the replicated server state, registered users and stored
+ * activity messages. Each entry gets the next local version, starting at 1, so a peer which has
+ * applied this log up to some version only needs the entries after it. The entries are also
+ * indexed by a MerkleTree, to find the differences with a peer without a common version.
+ * <p>
+ * The log is a memory-mapped array of one long per version, rebuilt on start like the indexes of
+ * the ActivityLog, holding the peer an entry came from and either the offset of an activity in
+ * the activity log or the index of a user among the users, which are on the heap anyway. Entries
+ * are made up when they are read, with the message of an activity read back from the ActivityLog.
+ * Up to MAX_ORIGINS peers are remembered as origins, weakly; the changes of later ones count as
+ * made here. Safe to use from any thread; the entries never change once appended.
+ *
+ * @author Huanan Li
+ */
+public class ReplicationLog {
+    private static final Logger log = LogManager.getLogger();
+
+    public static final int USER = 0;
+    public static final int ACTIVITY = 1;
+
+    // 1 + the offset of an activity shifted left by ORIGIN_BITS, or'ed with the id of its origin;
+    // the same with 1 + the index of a user, negated
+    private static final int ORIGIN_BITS = 16;
+    private static final int MAX_ORIGINS = (1 << ORIGIN_BITS) - 1;
+
+    private final MappedLongArray refs;
+    private final ArrayList<Entry> users = new ArrayList<>();
+    // origin ids from 1 on, 0 for none
+    private final ArrayList<WeakReference<Connection>> origins = new ArrayList<>();
+    private final WeakHashMap<Connection, Integer> originIds = new WeakHashMap<>();
+    private final MerkleTree tree;
+    private final ActivityLog activityLog;
+    private long version = 0;
+
+    public ReplicationLog(ActivityLog activityLog) throws IOException {
+        this.activityLog = activityLog;
+
+        File directory = activityLog.getDirectory();
+        refs = new MappedLongArray(new File(directory, "replication.idx"));
+        tree = new MerkleTree(new MappedLongArray(new File(directory, "buckets.idx")),
+                new MappedLongArray(new File(directory, "hashes.idx")));
+        origins.add(null);
+    }
+
+    /**
+     * Append a change
+     *
+     * @param type   USER or ACTIVITY
+     * @param key    the username, or the key of the activity message
+     * @param value  the secret, or the activity message, already stored in the activity log
+     * @param origin the peer the change was received from, null if it was made on this server
+     * @return long the version of the new entry
+     */
+    public long append(int type, String key, String value, Connection origin) {
+        // the activity log is never locked while this is, callers may hold it while appending
+        long offset = type == USER ? -1 : activityLog.offsetOf(key);
+
+        synchronized (this) {
+            long ref;
+            if (type == USER) {
+                users.add(new Entry(type, key, value, null));
+                ref = -((long) users.size() << ORIGIN_BITS | originId(origin));
+            } else {
+                ref = (offset + 1) << ORIGIN_BITS | originId(origin);
+            }
+
+            try {
+                refs.set(version, ref);
+            } catch (IOException e) {
+                // the entry is skipped by readers, a peer finds it through the hash tree
+                log.error("failed to record version " + (version + 1) + " of " + key + ": " + e);
+            }
+            version++;
+            tree.add(version, type, key, value);
+
+            return version;
+        }
+    }
+
+    /*
+     * the version of the last entry, 0 while the log is empty
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /*
+     * the secret of a user entry, or the message of an activity entry
+     */
+    public String valueOf(Entry entry) {
+        return entry.value;
+    }
+
+    public MerkleTree getTree() {
+        return tree;
+    }
+
+    /**
+     * The entries after a version
+     *
+     * @param version the version the reader has applied
+     * @param max     the most versions to cover
+     * @return the entries of the versions from version + 1 on, at most max of them, and the last
+     * version covered; versions which could not be recorded or read have no entry
+     */
+    public Delta since(long version, int max) {
+        long[] versions;
+        long from;
+        synchronized (this) {
+            from = Math.max(0, Math.min(version, this.version));
+            versions = new long[(int) Math.min(this.version - from, max)];
+            for (int i = 0; i < versions.length; i++) {
+                versions[i] = from + 1 + i;
+            }
+        }
+
+        return new Delta(getEntries(versions), from + versions.length);
+    }
+
+    /*
+     * the entries of versions, such as those of a bucket of the hash tree, leaving out those
+     * which could not be recorded. The references are taken under the lock, the activities read
+     * after it is released.
+     */
+    public List<Entry> getEntries(long... versions) {
+        long[] offsets = new long[versions.length];
+        Entry[] users = new Entry[versions.length];
+        Connection[] origins = new Connection[versions.length];
+        synchronized (this) {
+            for (int i = 0; i < versions.length; i++) {
+                long ref = refs.get(versions[i] - 1);
+                long position = (Math.abs(ref) >>> ORIGIN_BITS) - 1;
+                WeakReference<Connection> origin = this.origins.get((int) (Math.abs(ref) & MAX_ORIGINS));
+
+                origins[i] = origin == null ? null : origin.get();
+                offsets[i] = ref < 0 ? -1 : position;
+                users[i] = ref < 0 ? this.users.get((int) position) : null;
+            }
+        }
+
+        ArrayList<Entry> entries = new ArrayList<>(versions.length);
+        for (int i = 0; i < versions.length; i++) {
+            if (users[i] != null) {
+                entries.add(new Entry(USER, users[i].key, users[i].value, origins[i]));
+                continue;
+            }
+
+            ActivityLog.Activity activity = offsets[i] < 0 ? null : activityLog.getActivityAt(offsets[i]);
+            if (activity != null) {
+                entries.add(new Entry(ACTIVITY, activity.getKey(), activity.getJsonMessage(), origins[i]));
+            }
+        }
+
+        return entries;
+    }
+
+    private int originId(Connection origin) {
+        if (origin == null) {
+            return 0;
+        }
+
+        Integer id = originIds.get(origin);
+        if (id == null) {
+            if (origins.size() > MAX_ORIGINS) {
+                return 0;
+            }
+            id = origins.size();
+            origins.add(new WeakReference<>(origin));
+            originIds.put(origin, id);
+        }
+
+        return id;
+    }
+
+    /*
+     * the entries of a run of versions, up to and including the last one
+     */
+    public static class Delta {
+        private final List<Entry> entries;
+        private final long to;
+
+        private Delta(List<Entry> entries, long to) {
+            this.entries = entries;
+            this.to = to;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        public long getTo() {
+            return to;
+        }
+    }
+
+    public static class Entry {
+        private final int type;
+        private final String key;
+        private final String value;
+        private final Connection origin;
+
+        private Entry(int type, String key, String value, Connection origin) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.origin = origin;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Connection getOrigin() {
+            return origin;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package activitystreamer.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A full-text inverted index over the "object" text of the stored activities. Each term maps to
+ * the log offsets of the activities containing it, with the number of times it occurs, delta and
+ * varint encoded. Activities are indexed on a thread of their own, which reads them back from the
+ * activity log: storing an activity only records that the log has grown, so however far the
+ * indexer falls behind, nothing waits for it but the offset it has to catch up to. The index is
+ * built in generations; once the postings take more than the byte budget the oldest generation
+ * is dropped, so searches cover the most recent history that fits. The budget counts the arrays
+ * the postings are in, not only the bytes written to them, and a generation's arrays are trimmed
+ * to what they hold once a newer generation takes over.
+ *
+ * @author Huanan Li
+ */
+public class SearchIndex {
+    private static final Logger log = LogManager.getLogger();
+
+    // longer tokens are not words anyone searches for
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int GENERATIONS = 4;
+
+    private static final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "search-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final JsonParser parser = new JsonParser();
+    private final ActivityLog activityLog;
+    private final long maxBytes;
+    // the newest generation last
+    private final ArrayDeque<Generation> generations = new ArrayDeque<>();
+    // the offset of the newest activity stored, and whether the indexer is set to catch up to it
+    private final AtomicLong latest = new AtomicLong(-1);
+    private final AtomicBoolean catchingUp = new AtomicBoolean();
+    private long indexed = 0;
+    private long dropped = 0;
+    // only written by the indexer
+    private volatile long lastOffset = -1;
+
+    /**
+     * @param activityLog the log the activities are read from
+     * @param maxBytes    the most bytes the posting lists may take
+     */
+    public SearchIndex(ActivityLog activityLog, long maxBytes) {
+        this.activityLog = activityLog;
+        this.maxBytes = maxBytes;
+        generations.add(new Generation());
+    }
+
+    /**
+     * Have an activity stored in the activity log indexed, with every one stored before it
+     *
+     * @param offset the offset of the activity in the activity log
+     */
+    public void add(long offset) {
+        latest.accumulateAndGet(offset, Math::max);
+
+        if (catchingUp.compareAndSet(false, true)) {
+            indexer.execute(this::catchUp);
+        }
+    }
+
+    /*
+     * index the activities of the log up to the latest one added, on the indexer
+     */
+    private void catchUp() {
+        try {
+            long from;
+            while ((from = lastOffset + 1) <= latest.get()) {
+                activityLog.forEach(from, activity -> index(activity.getOffset(), objectOf(activity.getJsonMessage())));
+
+                if (lastOffset < from) {
+                    // none of them could be read, they are tried again with the next one added
+                    log.error("search index failed to read the activities from offset " + from);
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("search indexing failed: " + e, e);
+        } finally {
+            catchingUp.set(false);
+        }
+
+        // one added after the last look, while this was still set to catch up
+        if (lastOffset < latest.get() && catchingUp.compareAndSet(false, true)) {
+            indexer.execute(this::catchUp);
+        }
+    }
+
+    /**
+     * The activities matching most of the terms of a query. Activities with more of the terms
+     * come first, then the ones with more occurrences, then the newer ones.
+     *
+     * @param query the words to search for
+     * @param k     the most results
+     * @return the offsets of the results in the activity log, best first
+     */
+    public synchronized List<Long> search(String query, int k) {
+        LinkedHashSet<String> terms = new LinkedHashSet<>(tokenize(query));
+        // offset -> distinct terms matched, occurrences
+        HashMap<Long, int[]> scores = new HashMap<>();
+
+        for (String term : terms) {
+            for (Generation generation : generations) {
+                Postings postings = generation.terms.get(term);
+                if (postings == null) {
+                    continue;
+                }
+
+                long offset = generation.firstOffset;
+                int i = 0;
+                while (i < postings.size) {
+                    long value = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = postings.bytes[i++];
+                        value |= (long) (b & 0x7f) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    offset += value;
+
+                    int count = postings.bytes[i++] & 0xff;
+                    int[] score = scores.get(offset);
+                    if (score == null) {
+                        scores.put(offset, new int[]{1, count});
+                    } else {
+                        score[0]++;
+                        score[1] += count;
+                    }
+                }
+            }
+        }
+
+        PriorityQueue<Map.Entry<Long, int[]>> best = new PriorityQueue<>(k + 1, SearchIndex::compare);
+        for (Map.Entry<Long, int[]> entry : scores.entrySet()) {
+            best.add(entry);
+            if (best.size() > k) {
+                best.poll();
+            }
+        }
+
+        ArrayList<Long> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            result.add(best.poll().getKey());
+        }
+        Collections.reverse(result);
+
+        return result;
+    }
+
+    public synchronized String getStats() {
+        long bytes = 0;
+        int terms = 0;
+        for (Generation generation : generations) {
+            bytes += generation.bytes;
+            terms += generation.terms.size();
+        }
+
+        return "search index " + indexed + " activities, " + terms + " terms, " + bytes + " bytes in "
+                + generations.size() + " generations, " + dropped + " activities dropped, "
+                + Math.max(0, latest.get() - lastOffset) + " to index";
+    }
+
+    /*
+     * worse scores first, for the heap which keeps the k best
+     */
+    private static int compare(Map.Entry<Long, int[]> a, Map.Entry<Long, int[]> b) {
+        int[] x = a.getValue();
+        int[] y = b.getValue();
+
+        if (x[0] != y[0]) {
+            return Integer.compare(x[0], y[0]);
+        }
+        if (x[1] != y[1]) {
+            return Integer.compare(x[1], y[1]);
+        }
+
+        return Long.compare(a.getKey(), b.getKey());
+    }
+
+    private synchronized void index(long offset, String object) {
+        // the postings only go forward
+        if (offset <= lastOffset) {
+            return;
+        }
+        lastOffset = offset;
+        if (object == null) {
+            return;
+        }
+
+        HashMap<String, Integer> counts = new HashMap<>();
+        for (String term : tokenize(object)) {
+            counts.merge(term, 1, Integer::sum);
+        }
+
+        Generation generation = generations.getLast();
+        if (generation.bytes > maxBytes / GENERATIONS) {
+            generation.bytes -= generation.trim();
+            generation = new Generation();
+            generations.add(generation);
+        }
+        if (generation.count == 0) {
+            generation.firstOffset = offset;
+        }
+
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            Postings postings = generation.terms.get(entry.getKey());
+            if (postings == null) {
+                postings = new Postings();
+                generation.terms.put(entry.getKey(), postings);
+                // the term itself, the map entry holding it and its first array
+                generation.bytes += 2 * entry.getKey().length() + 64 + Postings.INITIAL_CAPACITY;
+            }
+
+            generation.bytes += postings.add(offset, generation.firstOffset, Math.min(entry.getValue(), 255));
+        }
+        generation.count++;
+        indexed++;
+
+        long bytes = 0;
+        for (Generation g : generations) {
+            bytes += g.bytes;
+        }
+        Iterator<Generation> oldest = generations.iterator();
+        while (bytes > maxBytes && generations.size() > 1) {
+            Generation g = oldest.next();
+            bytes -= g.bytes;
+            dropped += g.count;
+            oldest.remove();
+        }
+    }
+
+    /*
+     * the object text of an activity message, null if it has none
+     */
+    private String objectOf(String jsonMessage) {
+        try {
+            JsonElement activity = parser.parse(jsonMessage).getAsJsonObject().get("activity");
+            if (activity == null || !activity.isJsonObject()) {
+                return null;
+            }
+
+            JsonElement object = ((JsonObject) activity).get("object");
+
+            return object != null && object.isJsonPrimitive() ? object.getAsString() : null;
+        } catch (JsonSyntaxException | IllegalStateException e) {
+            log.debug("activity not indexed: " + e.getMessage());
+
+            return null;
+        }
+    }
+
+    /*
+     * lower case runs of letters and digits
+     */
+    private static List<String> tokenize(String text) {
+        ArrayList<String> terms = new ArrayList<>();
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase());
+                }
+                start = -1;
+            }
+        }
+
+        return terms;
+    }
+
+    /*
+     * the postings of the activities indexed one after another, from firstOffset on
+     */
+    private static class Generation {
+        private final HashMap<String, Postings> terms = new HashMap<>();
+        private long firstOffset = 0;
+        private long bytes = 0;
+        private int count = 0;
+
+        // fit the postings to what they hold, once no more are added; the bytes freed
+        private long trim() {
+            long freed = 0;
+            for (Postings postings : terms.values()) {
+                freed += postings.trim();
+            }
+
+            return freed;
+        }
+    }
+
+    /*
+     * pairs of the offset, as a varint of the difference to the one before, and the occurrences
+     * as one byte; the first offset is relative to the first offset of the generation
+     */
+    private static class Postings {
+        private static final int INITIAL_CAPACITY = 8;
+
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int size = 0;
+        private long last = -1;
+
+        /*
+         * add an activity, returning how much the array grew by
+         */
+        private int add(long offset, long firstOffset, int count) {
+            long delta = offset - (last < 0 ? firstOffset : last);
+            last = offset;
+
+            int capacity = bytes.length;
+            if (size + 11 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+
+            while ((delta & ~0x7fL) != 0) {
+                bytes[size++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[size++] = (byte) delta;
+            bytes[size++] = (byte) count;
+
+            return bytes.length - capacity;
+        }
+
+        private int trim() {
+            int freed = bytes.length - size;
+            if (freed > 0) {
+                bytes = Arrays.copyOf(bytes, size);
+            }
+
+            return freed;
+        }
+    }
+}
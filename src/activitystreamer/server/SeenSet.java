@@ -0,0 +1,98 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Hashes;
+
+import java.util.Arrays;
+
+/**
+ * A bounded, time windowed set of recently seen ids, made of two Bloom filters. Ids are added
+ * to the current filter and looked up in both. The current filter becomes the previous one,
+ * and the old previous one is dropped, once it holds CAPACITY ids or is WINDOW_MILLIS old. So
+ * an id is remembered for at least one window, memory stays fixed and every operation is O(1).
+ * A Bloom filter can report an id it never saw; with these sizes that happens to at most about
+ * 2 in 10^5 new ids. Guarded by the Gossip holding it.
+ *
+ * @author Huanan Li
+ */
+public class SeenSet {
+    private static final int CAPACITY = 64 * 1024;
+    private static final long WINDOW_MILLIS = 5 * 60 * 1000;
+    // 24 bits per id and 16 probes give a false positive rate near 10^-5 at CAPACITY
+    private static final int BITS = CAPACITY * 24;
+    private static final int PROBES = 16;
+
+    private long[] current = new long[BITS / 64];
+    private long[] previous = new long[BITS / 64];
+    private int count = 0;
+    private long rotatedAt = System.currentTimeMillis();
+
+    /**
+     * Add an id
+     *
+     * @param id the id
+     * @return true if the id was not seen yet, false if it was, or probably was
+     */
+    public boolean add(String id) {
+        long h1 = firstHash(id);
+        long h2 = secondHash(h1);
+
+        if (contains(current, h1, h2) || contains(previous, h1, h2)) {
+            return false;
+        }
+
+        rotateIfDue();
+        for (int i = 0; i < PROBES; i++) {
+            int bit = bit(h1, h2, i);
+            current[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+
+        return true;
+    }
+
+    public boolean contains(String id) {
+        long h1 = firstHash(id);
+        long h2 = secondHash(h1);
+
+        return contains(current, h1, h2) || contains(previous, h1, h2);
+    }
+
+    private static long firstHash(String id) {
+        return Hashes.mix(Hashes.hash(0, id));
+    }
+
+    // odd, so the probes of an id never repeat a step of 0
+    private static long secondHash(long h1) {
+        return Hashes.mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+    }
+
+    private static boolean contains(long[] filter, long h1, long h2) {
+        for (int i = 0; i < PROBES; i++) {
+            int bit = bit(h1, h2, i);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // double hashing, probe i of an id
+    private static int bit(long h1, long h2, int i) {
+        return (int) (((h1 + i * h2) & Long.MAX_VALUE) % BITS);
+    }
+
+    private void rotateIfDue() {
+        long now = System.currentTimeMillis();
+
+        if (count >= CAPACITY || now - rotatedAt >= WINDOW_MILLIS) {
+            long[] cleared = previous;
+            Arrays.fill(cleared, 0);
+
+            previous = current;
+            current = cleared;
+            count = 0;
+            rotatedAt = now;
+        }
+    }
+}
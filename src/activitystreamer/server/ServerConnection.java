@@ -5,6 +5,7 @@ import activitystreamer.util.Settings;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.Executor;
 
 
 
@@ -21,24 +22,50 @@ public class ServerConnection extends Connection {
         super(socket);
     }
 
+    public ServerConnection(Socket socket, Executor pool) throws IOException {
+        super(socket, pool);
+    }
+
     public void run() {
         log.info("connection running");
 
         String data;
 
         try {
+            // the lines are processed on the worker pool, this thread only reads
             while (!term && (data = inreader.readLine()) != null) {
-                term = ServerControl.getInstance().process(this, data);
+                deliver(data);
             }
 
-//            log.debug("connection closed to " + Settings.socketAddress(socket));
+            log.debug("connection closed to " + Settings.socketAddress(socket));
         } catch (IOException e) {
-            log.error("connection " + Settings.socketAddress(socket) + " closed with exception: " + e);
+            if (term) {
+                log.debug("connection " + Settings.socketAddress(socket) + " closed");
+            } else {
+                log.error("connection " + Settings.socketAddress(socket) + " closed with exception: " + e);
+            }
+        }
 
+        // after the lines received before the close, however the connection ended
+        enqueue(() -> {
+            if (!term) {
+                term = true;
+                closeStream();
+            }
             ServerControl.getInstance().connectionClosed(this);
-        }
+        });
+    }
+
+    @Override
+    public boolean handleMsg(String msg) {
+        return ServerControl.getInstance().process(this, msg);
+    }
+
+    @Override
+    protected void handleClosed() {
+        super.handleClosed();
 
-//        ServerControl.getInstance().connectionClosed(this);
-//        closeStream();
+        // after the lines received before the close
+        enqueue(() -> ServerControl.getInstance().connectionClosed(this));
     }
 }
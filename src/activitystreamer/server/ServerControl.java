@@ -3,8 +3,14 @@ package activitystreamer.server;
 import Message.*;
 import activitystreamer.util.Connection;
 import activitystreamer.util.Control;
+import activitystreamer.util.Frames;
+import activitystreamer.util.Hashes;
+import activitystreamer.util.HybridClock;
+import activitystreamer.util.OutboundQueue;
 import activitystreamer.util.Settings;
-import com.google.gson.Gson;
+import activitystreamer.util.SlowConsumerPolicy;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import org.apache.logging.log4j.LogManager;
@@ -13,8 +19,14 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * This class deals with main logic of servers' behavior. It is responsible for processing clients'
@@ -28,25 +40,98 @@ public class ServerControl extends Control {
     private static final Logger log = LogManager.getLogger();
     private static final int SERVER_CONNECTION_UPPER_LIMIT = 50;
     private static final int CLIENT_CONNECTION_UPPER_LIMIT = 3;
+    // the most log entries sent in one SYNC_DELTA
+    private static final int MAX_DELTA_ENTRIES = 512;
+    // the most activities on one REQUEST_ALL_BACK page
+    private static final int MAX_PAGE_ACTIVITIES = 512;
+    // the most results of one SEARCH
+    private static final int MAX_SEARCH_RESULTS = 100;
+    // a SNAPSHOT_CHUNK is closed once its entries take this many chars, a bigger entry goes alone
+    private static final int SNAPSHOT_CHUNK_CHARS = 64 * 1024;
+    // the same for a page of BUCKET_DATA, the rest of the buckets is asked for again
+    private static final int BUCKET_DATA_CHARS = 64 * 1024;
+    // the chunks a joining server lets its parent send ahead of its acknowledgements, and the most allowed
+    private static final int SNAPSHOT_WINDOW = 4;
+    private static final int MAX_SNAPSHOT_WINDOW = 16;
+    // sent to a silent client, which echoes it, and to every peer server each interval; only to
+    // those which advertised heartbeats, older versions reject it as an invalid message
+    private static final ByteBuffer HEARTBEAT_FRAME = Frames.encode(new HeartbeatMsg().toJsonString());
+    // The messages of different connections are processed in parallel, the state they share is
+    // in concurrent collections or guards itself; connections come and go rarely and the
+    // broadcasts iterate them, so the lists copy on write
     // a record for how many servers will connect to this server
-    private ArrayList<Connection> serverConnectionList = new ArrayList<>();
+    private final List<Connection> serverConnectionList = new CopyOnWriteArrayList<>();
     // a record for how many clients will connect to this server
-    private ArrayList<Connection> clientConnectionList = new ArrayList<>();
-
-    // The entire JSON message have stored
-    private HashMap<String, String> allActivityMessage = new HashMap<>();
+    private final List<Connection> clientConnectionList = new CopyOnWriteArrayList<>();
+    // the connections whose other end advertised heartbeats in its LOGIN, AUTHENTICATE or
+    // SERVER_ANNOUNCE, or sent one; a server which does is of this version, and is the only kind
+    // sent the requests of replication, which older servers reject as invalid messages
+    private final Set<Connection> heartbeating = ConcurrentHashMap.newKeySet();
+    // with -sh the incoming connections are processed on shards, which fan activities out to their own clients
+    private final ClientShards shards = Settings.getShards() > 0
+            ? new ClientShards(Settings.getShards(), this::disconnectSlowConsumers) : null;
+    // the client fan-out stage hands its frames to the shards over queues of its own
+    private final ClientShards.Feeder clientFeeder = shards == null ? null : shards.newFeeder();
+
+    // The entire JSON message have stored, on disk in the data directory
+    private ActivityLog activityLog;
+    // stamps the activities made here, after every activity received so far
+    private HybridClock clock = new HybridClock(Settings.getMaxClockDriftMillis());
 
     // a record for server info which have connect to this server
-    private ArrayList<ServerSettings> serverInfoList = new ArrayList<>();
+    private final List<ServerSettings> serverInfoList = new CopyOnWriteArrayList<>();
 
     // a record for client info which have connect to this server
-    private HashMap<String, String> userInfoList = new HashMap<>();
+    private final ConcurrentHashMap<String, String> userInfoList = new ConcurrentHashMap<>();
+    // keeps userInfoList on disk in the data directory
+    private UserStore userStore;
+
+    // every change to userInfoList and activityLog, replicated to peers as deltas
+    private ReplicationLog replicationLog;
+    // how far this server has applied the replication log of each peer server, each only
+    // touched while processing the messages of its connection
+    private final ConcurrentHashMap<Connection, PeerSync> peerSyncs = new ConcurrentHashMap<>();
+    // clients are turned away while the users of the snapshot this server joined with are arriving
+    private volatile boolean loadingUsers = false;
+
+    // which activities were seen, and which peers they are passed on to
+    private Gossip gossip = new Gossip();
+    // full-text index of the activity objects, updated off the broadcast path
+    private SearchIndex searchIndex;
+    // the activities made here, stored and fanned out to clients and to peers by stages of their own
+    private final ActivityPipeline pipeline = new ActivityPipeline(
+            new String[]{"activity-store", "activity-clients", "activity-peers"},
+            this::storeActivities, this::broadcastActivities, this::forwardActivities);
     // authenticate id between servers
     private String id = "groupdurian";
 
     private ServerControl() {
         super();
 
+        if (shards != null) {
+            // the client stage waits for the shards, so a shard waiting for the ring must not stop taking its frames
+            pipeline.setWhileFull(shards::receive);
+        }
+
+        // the users and history stored by an earlier run are back before any connection is accepted
+        HashMap<String, String> users = null;
+        try {
+            userStore = new UserStore(Settings.getDataDirectory());
+            users = userStore.load();
+            activityLog = ActivityLog.open(Settings.getDataDirectory(), new ActivityCache(
+                    Settings.getCacheActivities(), Settings.getCacheBytes(), Settings.getCacheAgeMillis()));
+            replicationLog = new ReplicationLog(activityLog);
+            searchIndex = new SearchIndex(activityLog, Settings.getSearchIndexBytes());
+        } catch (IOException e) {
+            log.error("failed to open the data directory: " + e);
+            System.exit(-1);
+        }
+        for (Map.Entry<String, String> user : users.entrySet()) {
+            userInfoList.put(user.getKey(), user.getValue());
+            replicationLog.append(ReplicationLog.USER, user.getKey(), user.getValue(), null);
+        }
+        restoreHistory();
+
         // start a listener
         listener = ServerListener.getInstance();
 
@@ -92,7 +177,8 @@ public class ServerControl extends Control {
     public ServerConnection incomingConnection(Socket s) throws IOException {
         log.debug("incomming connection: " + Settings.socketAddress(s));
 
-        ServerConnection con = new ServerConnection(s);
+        ServerConnection con = shards == null ? new ServerConnection(s) : new ServerConnection(s, shards.next());
+        watchIdle(con);
 
         return con;
     }
@@ -106,6 +192,16 @@ public class ServerControl extends Control {
     @Override
     public ServerConnection outgoingConnection(Socket s) throws IOException {
         ServerConnection con = new ServerConnection(s);
+        // Known as a server before the other server can answer
+        serverConnectionList.add(con);
+        watchIdle(con);
+
+        // A server with nothing yet joins with a snapshot of the parent's state, once the parent
+        // is known to serve one
+        if (replicationLog.getVersion() == 0) {
+            getPeerSync(con).joining = true;
+        }
+
         // Send authentication message
         AuthMsg authJson = new AuthMsg();
         // This step the connect server must have the same secret provided by the host server
@@ -115,12 +211,11 @@ public class ServerControl extends Control {
         String authJsonStr = authJson.toJsonString();
         con.writeMsg(authJsonStr);
 
-        serverConnectionList.add(con);
         return con;
     }
 
     /**
-     * the connection has been closed
+     * the connection has been closed, called after the messages received on it were processed
      *
      * @param con the current connection
      */
@@ -128,8 +223,15 @@ public class ServerControl extends Control {
     public void connectionClosed(Connection con) {
         super.connectionClosed(con);
 
+        heartbeating.remove(con);
         if (!term && !serverConnectionList.remove(con)) {
-            clientConnectionList.remove(con);
+            removeClient(con);
+        }
+        PeerSync peerSync = peerSyncs.remove(con);
+        if (peerSync != null && peerSync.receiving && loadingUsers) {
+            log.warn("connection closed before the snapshot's users arrived, serving clients with "
+                    + userInfoList.size() + " users");
+            loadingUsers = false;
         }
     }
 
@@ -144,7 +246,7 @@ public class ServerControl extends Control {
         // make a connection to another server if remote hostname is supplied
         if (host != null) {
             try {
-                outgoingConnection(new Socket(host, port));
+                outgoingConnection(openSocket(host, port));
                 return true;
             } catch (UnknownHostException e) {
                 log.info("Server establish connection failed. Unknown Host: " + e.getMessage());
@@ -160,20 +262,40 @@ public class ServerControl extends Control {
 
     /**
      * process incoming Message, either from client or server, from connection con return true if the connection
-     * should be closed, false otherwise
+     * should be closed, false otherwise. Called on a worker thread, the messages of one connection one after
+     * another and those of different connections in parallel.
      *
      * @param con message to be processed
      * @param msg message comes from connection con
      * @return true to close the connection, false otherwise
      */
     @Override
-    public synchronized boolean process(Connection con, String msg) {
+    public boolean process(Connection con, String msg) {
+        // A copy of an activity already seen is dropped on its leading id, before anything else is read
+        String leadingId = MessageSniffer.readLeadingActivityId(msg);
+        if (leadingId != null && gossip.isDuplicate(leadingId)) {
+            log.debug("Activity " + leadingId + " already seen, dropped");
+
+            return false;
+        }
+
         log.debug("Server Receieved: " + msg);
 
+        // Relayed activities only need command and activity checked, and are forwarded as received.
+        // Other messages, whose command is seen without reading them, go straight to the decoder.
+        String command = MessageSniffer.peekCommand(msg);
+        if (command == null || command.equals(JsonMessage.ACTIVITY_BROADCAST)) {
+            MessageSniffer.BroadcastHeader header = MessageSniffer.readActivityBroadcast(msg);
+            if (header != null) {
+                return processActivityBroadcastMsg(con, msg, header.getId(), header.getTime(), header.getHlc());
+            }
+        }
+
         JsonObject receivedJsonObj;
 
         try {
-            receivedJsonObj = new Gson().fromJson(msg, JsonObject.class);
+            // only the command and the fields its handler reads are decoded
+            receivedJsonObj = MessageDecoder.decode(msg);
         } catch (JsonSyntaxException e) {
             log.debug("Server receiving msg failed. Not json format: " + e.getMessage());
             //return true;
@@ -188,9 +310,11 @@ public class ServerControl extends Control {
 
         switch (msgType) {
             case JsonMessage.LOGIN:
+                noteHeartbeat(con, receivedJsonObj);
                 return processLoginMsg(con, receivedJsonObj);
 
             case JsonMessage.AUTHENTICATE:
+                noteHeartbeat(con, receivedJsonObj);
                 return processAuthMsg(con, receivedJsonObj);
 
             case JsonMessage.CLIENT_AUTHENTICATE:
@@ -202,24 +326,78 @@ public class ServerControl extends Control {
             case JsonMessage.REQUEST_ALL:
                 return processRequestAllMsg(con, receivedJsonObj);
 
+            case JsonMessage.QUERY:
+                return processQueryMsg(con, receivedJsonObj);
+
+            case JsonMessage.SEARCH:
+                return processSearchMsg(con, receivedJsonObj);
+
             case JsonMessage.LOGOUT:
                 return processLogoutMsg(con, receivedJsonObj);
 
             case JsonMessage.INVALID_MESSAGE:
                 return processInvalidMsg(receivedJsonObj);
 
+            case JsonMessage.HEARTBEAT:
+                // receiving it is all it is for; only servers which take heartbeats send them, so a
+                // peer knows the server it connected to does before its first announce
+                advertised(con);
+                return false;
+
             case JsonMessage.ACTIVITY_MESSAGE:
                 return processActivityMsg(con, receivedJsonObj);
 
             case JsonMessage.ACTIVITY_BROADCAST:
-                return processActivityBroadcastMsg(con, receivedJsonObj);
+                // Only reached when the relay fast path could not validate the message, which is
+                // then relayed as decoded: only its known fields, in well-formed JSON
+                if (!isActivityMsgValid(con, receivedJsonObj)) {
+                    return true;
+                }
+                String activityId = receivedJsonObj.has("id") && receivedJsonObj.get("id").isJsonPrimitive()
+                        ? receivedJsonObj.get("id").getAsString() : null;
+                long sentAt = receivedJsonObj.has("time") && receivedJsonObj.get("time").isJsonPrimitive()
+                        ? receivedJsonObj.get("time").getAsLong() : 0;
+                long hlc = receivedJsonObj.has("hlc") && receivedJsonObj.get("hlc").isJsonPrimitive()
+                        ? receivedJsonObj.get("hlc").getAsLong() : 0;
+
+                String relayed = MessageCodecs.GSON.toJson(receivedJsonObj);
+
+                return processActivityBroadcastMsg(con, relayed, activityId, sentAt, hlc);
 
             case JsonMessage.REGISTER:
                 return processRegisterMsg(con, receivedJsonObj);
 
             case JsonMessage.SERVER_ANNOUNCE:
+                noteHeartbeat(con, receivedJsonObj);
                 return processServerAnnounceMsg(con, receivedJsonObj);
 
+            case JsonMessage.SYNC_REQUEST:
+                return processSyncRequestMsg(con, receivedJsonObj);
+
+            case JsonMessage.SYNC_DELTA:
+                return processSyncDeltaMsg(con, receivedJsonObj);
+
+            case JsonMessage.MERKLE_REQUEST:
+                return processMerkleRequestMsg(con, receivedJsonObj);
+
+            case JsonMessage.MERKLE_NODES:
+                return processMerkleNodesMsg(con, receivedJsonObj);
+
+            case JsonMessage.BUCKET_REQUEST:
+                return processBucketRequestMsg(con, receivedJsonObj);
+
+            case JsonMessage.SNAPSHOT_REQUEST:
+                return processSnapshotRequestMsg(con, receivedJsonObj);
+
+            case JsonMessage.SNAPSHOT_CHUNK:
+                return processSnapshotChunkMsg(con, receivedJsonObj);
+
+            case JsonMessage.SNAPSHOT_ACK:
+                return processSnapshotAckMsg(con, receivedJsonObj);
+
+            case JsonMessage.BUCKET_DATA:
+                return processBucketDataMsg(con, receivedJsonObj);
+
             default:
                 return processInvalidCommand(con, receivedJsonObj);
         }
@@ -237,20 +415,33 @@ public class ServerControl extends Control {
         ServerAnnounceMsg serverAnnounceMsg = new ServerAnnounceMsg();
         serverAnnounceMsg.setHostname(Settings.getLocalHostname());
         serverAnnounceMsg.setId(id);
-        serverAnnounceMsg.setLoad(clientConnectionList.size());
         serverAnnounceMsg.setPort(Settings.getLocalPort());
-        // Activity for synchronizing the UserList and All activity Message.
-        // Added for Project 2
-        serverAnnounceMsg.setUserList(userInfoList);
-        serverAnnounceMsg.setAllJSONMessage(allActivityMessage);
 
-        String serverAnnounceJsonStr = serverAnnounceMsg.toJsonString();
+        serverAnnounceMsg.setLoad(clientConnectionList.size());
+        // Users and activity messages are not announced, peers behind this version fetch the delta
+        serverAnnounceMsg.setVersion(replicationLog.getVersion());
+        serverAnnounceMsg.setDigest(Long.toHexString(replicationLog.getTree().getRoot()));
 
         // Broad server announce to adjacent servers
-        broadcastToAllOtherServers(serverAnnounceJsonStr);
+        broadcastToAllOtherServers(serverAnnounceMsg.toJsonString());
 
         log.info("Server announcement sent");
 
+        for (SlowConsumerPolicy policy : SlowConsumerPolicy.values()) {
+            if (policy.getFired() > 0) {
+                log.info("slow consumer policy " + policy.getOption() + " fired " + policy.getFired() + " times");
+            }
+        }
+
+        log.info(gossip.getStats());
+
+        // the activities of the last few seconds reach the disk even if the machine goes down
+        activityLog.flush();
+        snapshotUsers();
+        activityLog.getCache().evictExpired();
+        log.info(activityLog.getCache().getStats());
+        log.info(searchIndex.getStats());
+
         return false;
     }
 
@@ -264,7 +455,7 @@ public class ServerControl extends Control {
     private boolean processLogoutMsg(Connection con, JsonObject receivedJsonObj) {
         log.info("user logout");
 
-        clientConnectionList.remove(con);
+        removeClient(con);
 
         return true;
     }
@@ -286,18 +477,129 @@ public class ServerControl extends Control {
     }
 
     /**
-     * The Client request all activity message when request, server will send back them
+     * The Client request all activity message when request, server will send back them in
+     * order. With a since timestamp only the activities stamped after it are sent. The answer is
+     * one REQUEST_ALL_BACK page of at most limit activities, MAX_PAGE_ACTIVITIES without one, with
+     * the cursor to ask for the next one, so no reply holds the whole history. The connection
+     * stays open for the next page.
      * @param con
      * @param receivedJsonObj
      * @return
      */
     private boolean processRequestAllMsg(Connection con, JsonObject receivedJsonObj) {
         log.info("Request message from connected Client");
-        RequestAllActivityMsg requestAll = new RequestAllActivityMsg();
-        requestAll.setAllActivityMessage(allActivityMessage);
-        String backRequestMessage = requestAll.toJsonString();
-        con.writeMsg(backRequestMessage);
-        return true;
+        long since = receivedJsonObj.has("since") && receivedJsonObj.get("since").isJsonPrimitive()
+                ? receivedJsonObj.get("since").getAsLong() : 0;
+
+        String cursor = receivedJsonObj.has("cursor") && receivedJsonObj.get("cursor").isJsonPrimitive()
+                ? receivedJsonObj.get("cursor").getAsString() : null;
+        ActivityLog.Page page;
+        try {
+            // a request without a limit, as older clients send, gets a first page of the largest size
+            int limit = receivedJsonObj.has("limit")
+                    ? Math.max(1, Math.min(receivedJsonObj.get("limit").getAsInt(), MAX_PAGE_ACTIVITIES))
+                    : MAX_PAGE_ACTIVITIES;
+
+            page = activityLog.page(cursor, since, limit);
+        } catch (IllegalArgumentException | UnsupportedOperationException | IllegalStateException e) {
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Invalid Message: the limit or cursor of REQUEST_ALL is malformed"));
+
+            return true;
+        }
+
+        sendPage(con, page, cursor);
+
+        return false;
+    }
+
+    /**
+     * A client asks for a page of the activities of one user, or of everyone, in a time range
+     * of wall clock milliseconds. The answer is a REQUEST_ALL_BACK page, as for REQUEST_ALL.
+     * @param con
+     * @param receivedJsonObj
+     * @return
+     */
+    private boolean processQueryMsg(Connection con, JsonObject receivedJsonObj) {
+        log.info("Query message from connected Client");
+
+        String cursor = receivedJsonObj.has("cursor") && receivedJsonObj.get("cursor").isJsonPrimitive()
+                ? receivedJsonObj.get("cursor").getAsString() : null;
+        ActivityLog.Page page;
+        try {
+            String actor = receivedJsonObj.has("actor") ? receivedJsonObj.get("actor").getAsString() : null;
+            long from = receivedJsonObj.has("from") ? receivedJsonObj.get("from").getAsLong() : 0;
+            long to = receivedJsonObj.has("to") ? receivedJsonObj.get("to").getAsLong() : 0;
+            int limit = receivedJsonObj.has("limit")
+                    ? Math.max(1, Math.min(receivedJsonObj.get("limit").getAsInt(), MAX_PAGE_ACTIVITIES))
+                    : MAX_PAGE_ACTIVITIES;
+
+            page = activityLog.query(actor, from, to, cursor, limit);
+        } catch (IllegalArgumentException | UnsupportedOperationException | IllegalStateException e) {
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Invalid Message: the fields of QUERY are malformed"));
+
+            return true;
+        }
+
+        sendPage(con, page, cursor);
+
+        return false;
+    }
+
+    /**
+     * A client searches the activity objects for some words. The answer holds the best k
+     * matches, best first; activities stored in the last moment may not be indexed yet.
+     * @param con
+     * @param receivedJsonObj
+     * @return
+     */
+    private boolean processSearchMsg(Connection con, JsonObject receivedJsonObj) {
+        log.info("Search message from connected Client");
+
+        String query;
+        int k;
+        try {
+            query = receivedJsonObj.get("query").getAsString();
+            k = receivedJsonObj.has("k")
+                    ? Math.max(1, Math.min(receivedJsonObj.get("k").getAsInt(), MAX_SEARCH_RESULTS))
+                    : MAX_SEARCH_RESULTS;
+        } catch (NullPointerException | IllegalArgumentException | UnsupportedOperationException
+                | IllegalStateException e) {
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Invalid Message: SEARCH needs a query"));
+
+            return true;
+        }
+
+        LinkedHashMap<String, String> results = new LinkedHashMap<>();
+        for (long offset : searchIndex.search(query, k)) {
+            ActivityLog.Activity activity = activityLog.getActivityAt(offset);
+            if (activity != null) {
+                results.put(activity.getKey(), activity.getJsonMessage());
+            }
+        }
+
+        SearchResultMsg searchResultMsg = new SearchResultMsg();
+        searchResultMsg.setQuery(query);
+        searchResultMsg.setAllActivityMessage(results);
+        con.writeMsg(searchResultMsg.toJsonString());
+
+        return false;
+    }
+
+    // Send a page of the history, an empty page leaves the client at the cursor it gave
+    private void sendPage(Connection con, ActivityLog.Page page, String cursor) {
+        LinkedHashMap<String, String> activities = new LinkedHashMap<>();
+        for (ActivityLog.Activity activity : page.getActivities()) {
+            activities.put(activity.getKey(), activity.getJsonMessage());
+        }
+
+        RequestAllBackMsg requestAllBack = new RequestAllBackMsg();
+        requestAllBack.setAllActivityMessage(activities);
+        requestAllBack.setCursor(page.getCursor() != null ? page.getCursor() : cursor);
+        requestAllBack.setMore(page.hasMore());
+        con.writeMsg(requestAllBack.toJsonString());
     }
 
 
@@ -322,29 +624,30 @@ public class ServerControl extends Control {
         String secret = receivedJsonObj.get("secret").getAsString();
         String username = receivedJsonObj.get("username").getAsString();
 
+        // Nobody but anonymous can be checked before the users have arrived
+        if (loadingUsers && !username.equals(JsonMessage.ANONYMOUS_USERNAME)) {
+            log.info("login refused, the user registry is still loading");
+
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.LOGIN_FAILED,
+                    "server is still loading the user registry, try again shortly"));
+
+            return true;
+        }
+
         // Secret or username is not correct, login failed
         if (!username.equals(JsonMessage.ANONYMOUS_USERNAME) && !hasClientInfo(username, secret)) {
             log.info("attempt to login with a wrong secret");
 
-            LoginFailedMsg loginFailedMsg = new LoginFailedMsg();
-            loginFailedMsg.setInfo("user attempt to login with a wrong secret");
-
-            String registFailedJsonStr = loginFailedMsg.toJsonString();
-            con.writeMsg(registFailedJsonStr);
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.LOGIN_FAILED,
+                    "user attempt to login with a wrong secret"));
 
             return true;
         }
 
-        if (clientConnectionList.size() < CLIENT_CONNECTION_UPPER_LIMIT) {
+        if (addClient(con)) {
             log.info("logged in as user " + username);
 
-            LoginSuccMsg loginSuccMsg = new LoginSuccMsg();
-            loginSuccMsg.setInfo("Login successful");
-
-            String loginSuccJsonStr = loginSuccMsg.toJsonString();
-            con.writeMsg(loginSuccJsonStr);
-
-            clientConnectionList.add(con);
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.LOGIN_SUCCESS, "Login successful"));
         }
         // This server is too busy
         else {
@@ -354,20 +657,24 @@ public class ServerControl extends Control {
             LoginFailedMsg loginFailedMsg = new LoginFailedMsg();
             loginFailedMsg.setInfo("server is too busy");
 
-            //iterate serverinfo and find the lowest connection load
-            RedirectMsg redirectMsg = new RedirectMsg();
             // Find the server with the lowest load
             ServerSettings server = minLoadServer();
+            if (server == null) {
+                con.writeMsg(loginFailedMsg.toJsonString());
+
+                return true;
+            }
+
+            //iterate serverinfo and find the lowest connection load
+            RedirectMsg redirectMsg = new RedirectMsg();
             redirectMsg.setHost(server.getRemoteHostname());
             redirectMsg.setPort(server.getRemotePort());
             redirectMsg.setId(server.getId());
 
             String redirectMsgJsonStr = redirectMsg.toJsonString();
             con.writeMsg(redirectMsgJsonStr);
-
-            return false;
         }
-        return true;
+        return false;
     }
 
     // Process Register message
@@ -380,8 +687,33 @@ public class ServerControl extends Control {
         String secret = receivedJsonObj.get("secret").getAsString();
         String username = receivedJsonObj.get("username").getAsString();
 
-        // Check whether username already exists, and username cannot be 'anonymous'
-        if (userInfoList.containsKey(username) || username.equals(JsonMessage.ANONYMOUS_USERNAME)) {
+        // Whether the username is taken is not known before the users have arrived
+        if (loadingUsers) {
+            log.info("register refused, the user registry is still loading");
+
+            RegisterFailedMsg registerFailedMsg = new RegisterFailedMsg();
+            registerFailedMsg.setInfo("server is still loading the user registry, try again shortly");
+            con.writeMsg(registerFailedMsg.toJsonString());
+
+            return true;
+        }
+
+        // Check whether username already exists, and username cannot be 'anonymous'. The user is
+        // added by the check, so two registrations of one name on different connections cannot both succeed
+        boolean added;
+        try {
+            added = !username.equals(JsonMessage.ANONYMOUS_USERNAME) && addUser(username, secret);
+        } catch (IOException e) {
+            log.error("failed to store user " + username + ": " + e);
+
+            RegisterFailedMsg registerFailedMsg = new RegisterFailedMsg();
+            registerFailedMsg.setInfo("registration of " + username + " could not be stored, try again");
+            con.writeMsg(registerFailedMsg.toJsonString());
+
+            return true;
+        }
+
+        if (!added) {
             log.info("Register failed. Username already exists!");
 
             RegisterFailedMsg registerFailedMsg = new RegisterFailedMsg();
@@ -394,7 +726,7 @@ public class ServerControl extends Control {
         }
         // Register success
         else {
-            // If only in one server
+            // If only in one server, the user is on the disk before the client hears of it
             log.info("Register_Success");
 
             // Send register success message
@@ -403,9 +735,6 @@ public class ServerControl extends Control {
 
             String registSuccJsonStr = registerSuccMsg.toJsonString();
             con.writeMsg(registSuccJsonStr);
-
-            // Add client info
-            userInfoList.put(username, secret);
         }
         return false;
     }
@@ -423,9 +752,8 @@ public class ServerControl extends Control {
 
         if (!serverConnectionList.contains(con)) {
             // Send invalid message
-            InvalidMsg invalidMsg = new InvalidMsg();
-            invalidMsg.setInfo(JsonMessage.UNAUTHENTICATED_SERVER);
-            con.writeMsg(invalidMsg.toJsonString());
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    JsonMessage.UNAUTHENTICATED_SERVER));
 
             return true;
         }
@@ -433,193 +761,917 @@ public class ServerControl extends Control {
         String id = receivedJsonObj.get("id").getAsString();
         String rp = receivedJsonObj.get("hostname").getAsString();
         int port = receivedJsonObj.get("port").getAsInt();
-        ServerSettings serverInfo = findServer(id,rp,port);
-
-        // This is a new server
-        if (serverInfo == null) {
-            serverInfo = new ServerSettings();
-            serverInfo.setId(id);
-            serverInfo.setServerLoad(receivedJsonObj.get("load").getAsInt());
-            serverInfo.setRemoteHostname(receivedJsonObj.get("hostname").getAsString());
-            serverInfo.setRemotePort(receivedJsonObj.get("port").getAsInt());
-            synchronizePool(receivedJsonObj);
-            serverInfoList.add(serverInfo);
-        }
-        // This is a known server, update server load info
-        else {
-            synchronizePool(receivedJsonObj);
-            serverInfo.setServerLoad(receivedJsonObj.get("load").getAsInt());
+        // Announces of one server may come in over several connections at once
+        synchronized (serverInfoList) {
+            ServerSettings serverInfo = findServer(id,rp,port);
+
+            // This is a new server
+            if (serverInfo == null) {
+                serverInfo = new ServerSettings();
+                serverInfo.setId(id);
+                serverInfo.setServerLoad(receivedJsonObj.get("load").getAsInt());
+                serverInfo.setRemoteHostname(receivedJsonObj.get("hostname").getAsString());
+                serverInfo.setRemotePort(receivedJsonObj.get("port").getAsInt());
+                serverInfoList.add(serverInfo);
+            }
+            // This is a known server, update server load info
+            else {
+                serverInfo.setServerLoad(receivedJsonObj.get("load").getAsInt());
+            }
+        }
+
+        // An older server keeps no replication log, and its announces carry no version to sync to
+        if (!heartbeating.contains(con)) {
+            return false;
+        }
+
+        // Ask for the changes this server has not applied yet
+        PeerSync peerSync = getPeerSync(con);
+        if (receivedJsonObj.has("version")) {
+            peerSync.version = receivedJsonObj.get("version").getAsLong();
         }
+
+        // A new link between servers which both have a history compares hash trees instead of
+        // transferring the peer's whole log
+        if (peerSync.applied == 0 && !peerSync.requested && peerSync.walking == 0 && !peerSync.isSnapshotting()
+                && peerSync.version > 0 && replicationLog.getVersion() > 0 && receivedJsonObj.has("digest")) {
+            String digest = Long.toHexString(replicationLog.getTree().getRoot());
+
+            if (digest.equals(receivedJsonObj.get("digest").getAsString())) {
+                peerSync.applied = peerSync.version;
+            } else {
+                requestMerkleNode(con, peerSync, 0);
+            }
+        }
+        requestDelta(con, peerSync);
+
         return false;
     }
 
     /**
-     * Process activity broadcast from other servers
+     * Process a request for the replication log entries after a version. The version is also
+     * the acknowledgement of every entry up to it.
      *
      * @param con
      * @param receivedJsonObj
      * @return boolean
      */
-    private boolean processActivityBroadcastMsg(Connection con, JsonObject receivedJsonObj) {
-        log.debug("Activity broadcast message received from port: " + con.getSocket().getPort());
+    private boolean processSyncRequestMsg(Connection con, JsonObject receivedJsonObj) {
+        if (!isFromAuthenticatedServer(con)) {
+            return true;
+        }
+        if (!receivedJsonObj.has("since")) {
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Message must contain field since"));
 
-        // Validate activity message
-        if (!isActivityMsgValid(con, receivedJsonObj)) {
             return true;
         }
 
-        String jsonStr = new Gson().toJson(receivedJsonObj);
+        long since = Math.min(receivedJsonObj.get("since").getAsLong(), replicationLog.getVersion());
+        ReplicationLog.Delta delta = replicationLog.since(since, MAX_DELTA_ENTRIES);
+
+        // every version walked is covered, including those whose entry could not be read
+        SyncDeltaMsg syncDeltaMsg = new SyncDeltaMsg();
+        syncDeltaMsg.setFrom(since);
+        syncDeltaMsg.setTo(delta.getTo());
+
+        for (ReplicationLog.Entry entry : delta.getEntries()) {
+            // the peer already has the changes it sent to this server
+            if (entry.getOrigin() == con) {
+                continue;
+            }
+
+            if (entry.getType() == ReplicationLog.USER) {
+                syncDeltaMsg.addUser(entry.getKey(), replicationLog.valueOf(entry));
+            } else {
+                syncDeltaMsg.addActivityMessage(entry.getKey(), replicationLog.valueOf(entry));
+            }
+        }
 
-        broadcastToAllClients(jsonStr);
-        forwardToOtherServers(con, jsonStr);
+        con.writeMsg(syncDeltaMsg.toJsonString());
 
         return false;
     }
 
     /**
-     * Process activity message from client
+     * Process a delta of a peer's replication log, merging the users and activity messages which
+     * are not known here yet
      *
      * @param con
      * @param receivedJsonObj
      * @return boolean
      */
-    private boolean processActivityMsg(Connection con, JsonObject receivedJsonObj) {
-        log.info("Activity message received from port: " + con.getSocket().getPort());
-
-        // Validate activity message
-        if (!isActivityMsgValid(con, receivedJsonObj)) {
+    private boolean processSyncDeltaMsg(Connection con, JsonObject receivedJsonObj) {
+        if (!isFromAuthenticatedServer(con)) {
             return true;
         }
-
-        // Check username and secret
-        String username = receivedJsonObj.get("username").getAsString();
-        String secret = receivedJsonObj.get("secret").getAsString();
-
-        if (!username.equals(JsonMessage.ANONYMOUS_USERNAME) && !hasClientInfo(username, secret)) {
-            // Send login failed info
-            log.info("Client auth failed");
-
-            InvalidMsg invalidMsg = new InvalidMsg();
-            invalidMsg.setInfo("Client auth failed");
-
-            con.writeMsg(invalidMsg.toJsonString());
+        if (!receivedJsonObj.has("from") || !receivedJsonObj.has("to")) {
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Message must contain fields from and to"));
 
             return true;
         }
 
-        log.debug("Broadcast activity message received from client");
-        // Convert it to activity broadcast message
-        JsonObject actJsonObj = receivedJsonObj.get("activity").getAsJsonObject();
-        String content = actJsonObj.get("object").getAsString();
-
-        ActBroadMsg actBroadMsg = new ActBroadMsg();
-        actBroadMsg.setActor(username);
-        actBroadMsg.setObject(content);
+        PeerSync peerSync = getPeerSync(con);
+        long from = receivedJsonObj.get("from").getAsLong();
+        long to = receivedJsonObj.get("to").getAsLong();
+        peerSync.requested = false;
 
-        String activityJsonStr = actBroadMsg.toJsonString();
+        // A delta which does not continue from what was applied is dropped and asked for again
+        if (from > peerSync.applied || to <= peerSync.applied) {
+            requestDelta(con, peerSync);
 
-        // Store the Activity message to the hashMap, save its username and activityMessage
-        Date date = new Date();
+            return false;
+        }
 
-        SimpleDateFormat dateFormatter = new SimpleDateFormat("hh:mm:ss");
-        log.info("Activity Message Send at(Time): " + dateFormatter.format(date));
-        allActivityMessage.put(username + "," + dateFormatter.format(date), activityJsonStr);
+        mergeEntries(con, receivedJsonObj);
+        peerSync.applied = to;
 
-        broadcastToAllClients(activityJsonStr);
-        broadcastToAllOtherServers(activityJsonStr);
+        // Deltas are bounded, keep asking until caught up
+        requestDelta(con, peerSync);
 
         return false;
     }
 
-    // Process authenticate message
-    private boolean processAuthMsg(Connection con, JsonObject receivedJsonObj) {
-        // This server has too many children
-        if (serverConnectionList.size() >= SERVER_CONNECTION_UPPER_LIMIT) {
-            log.info("Auth failure: too many servers connecting to this server");
-
-            AuthFailMsg authFailedMsg = new AuthFailMsg();
-            authFailedMsg.setInfo("Auth failure: too many servers connecting to this server");
+    /**
+     * Process a request for the child hashes of a node of the hash tree
+     *
+     * @param con
+     * @param receivedJsonObj
+     * @return boolean
+     */
+    private boolean processMerkleRequestMsg(Connection con, JsonObject receivedJsonObj) {
+        if (!isFromAuthenticatedServer(con)) {
+            return true;
+        }
 
-            String authFailedJsonStr = authFailedMsg.toJsonString();
-            con.writeMsg(authFailedJsonStr);
+        int node = receivedJsonObj.has("node") ? receivedJsonObj.get("node").getAsInt() : -1;
+        if (!MerkleTree.isNode(node)) {
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE, "Invalid hash tree node"));
 
             return true;
         }
-        // Json message format incorrect
-        else if (!receivedJsonObj.has("secret")) {
-            log.info("Auth failed: the supplied secret is incorrect");
 
-            AuthFailMsg authFailedMsg = new AuthFailMsg();
-            authFailedMsg.setInfo("the supplied secret is incorrect");
+        // a leaf of this tree, which the peer's may be deeper than, has no hashes to send
+        long[] hashes = replicationLog.getTree().getChildHashes(node);
+        MerkleNodesMsg merkleNodesMsg = new MerkleNodesMsg();
+        merkleNodesMsg.setNode(node);
+        merkleNodesMsg.setVersion(replicationLog.getVersion());
+        merkleNodesMsg.setHashes(hashes == null ? new long[0] : hashes);
+        con.writeMsg(merkleNodesMsg.toJsonString());
 
-            String authFailedJsonStr = authFailedMsg.toJsonString();
-            con.writeMsg(authFailedJsonStr);
+        return false;
+    }
 
+    /**
+     * Process the child hashes of a node of a peer's hash tree. Only the children whose hash
+     * differs from the local one are walked down, and only the leaves which differ are fetched,
+     * those of whichever tree is shallower there.
+     *
+     * @param con
+     * @param receivedJsonObj
+     * @return boolean
+     */
+    private boolean processMerkleNodesMsg(Connection con, JsonObject receivedJsonObj) {
+        if (!isFromAuthenticatedServer(con)) {
             return true;
         }
 
-        String secret = receivedJsonObj.get("secret").getAsString();
+        PeerSync peerSync = getPeerSync(con);
+        if (peerSync.walking == 0 || !receivedJsonObj.has("node") || !receivedJsonObj.has("hashes")) {
+            return false;
+        }
 
-        if (!secret.equals(Settings.getSecret())) {
-            log.info("Auth failed");
+        int node = receivedJsonObj.get("node").getAsInt();
+        long[] local = replicationLog.getTree().getChildHashes(node);
+        JsonArray hashes = receivedJsonObj.getAsJsonArray("hashes");
 
-            AuthFailMsg authFailedMsg = new AuthFailMsg();
-            authFailedMsg.setInfo("the supplied secret is incorrect: " + secret);
+        if (node == 0 && receivedJsonObj.has("version")) {
+            // the peer's log up to this version is covered once the walk is done
+            peerSync.walkVersion = receivedJsonObj.get("version").getAsLong();
+        }
 
-            String authFailedJsonStr = authFailedMsg.toJsonString();
-            con.writeMsg(authFailedJsonStr);
+        BucketRequestMsg bucketRequestMsg = new BucketRequestMsg();
+        if (hashes.size() == 0) {
+            // a leaf of the peer's tree
+            bucketRequestMsg.addBucket(node);
+        } else if (local != null && hashes.size() == local.length) {
+            for (int i = 0; i < local.length; i++) {
+                if (Long.toHexString(local[i]).equals(hashes.get(i).getAsString())) {
+                    continue;
+                }
 
-            return true;
+                int child = MerkleTree.FANOUT * node + 1 + i;
+                if (replicationLog.getTree().isLeaf(child)) {
+                    bucketRequestMsg.addBucket(child);
+                } else {
+                    requestMerkleNode(con, peerSync, child);
+                }
+            }
         }
-        // Server already authenticated, send invalid message
-        else if (isServerAuthenticated(con)) {
-            return true;
+
+        if (!bucketRequestMsg.isEmpty()) {
+            con.writeMsg(bucketRequestMsg.toJsonString());
+            peerSync.walking++;
         }
-        // Connect with server
-        else {
-            log.info("Auth succeeded");
 
-            serverConnectionList.add(con);
+        finishWalkStep(con, peerSync);
 
-            return false;
-        }
+        return false;
     }
 
     /**
-     * Process the Client authenticate and give login success
+     * Process a request for every entry under some nodes of the hash tree. A request with from gets
+     * a page of the entries from there, the buckets taken in order, and the position of the next
+     * page if there is one; a request without it, from an older server, gets them all at once.
      *
      * @param con
      * @param receivedJsonObj
-     * @return
+     * @return boolean
      */
-
-    private boolean processClientAuthMsg(Connection con, JsonObject receivedJsonObj) {
-        // Validate login message format
-        if (!isUserInfoMsgValid(con, receivedJsonObj)) {
+    private boolean processBucketRequestMsg(Connection con, JsonObject receivedJsonObj) {
+        if (!isFromAuthenticatedServer(con)) {
             return true;
         }
+        if (!receivedJsonObj.has("buckets") || !receivedJsonObj.get("buckets").isJsonArray()) {
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Message must contain field buckets"));
 
-        String username = receivedJsonObj.get("username").getAsString();
-        // Check if the Server's Userlist have the user
-        if (!userInfoList.containsKey(username)) {
+            return true;
+        }
 
-            LoginFailedMsg loginFailedMsg = new LoginFailedMsg();
-            loginFailedMsg.setInfo("The Server do not have this user");
-            String loginFailedJsonStr = loginFailedMsg.toJsonString();
-            con.writeMsg(loginFailedJsonStr);
+        BucketDataMsg bucketDataMsg = new BucketDataMsg();
+        boolean paged = receivedJsonObj.has("from");
+        long from = paged ? receivedJsonObj.get("from").getAsLong() : 0;
+        ArrayList<Integer> buckets = new ArrayList<>();
+        for (JsonElement element : receivedJsonObj.getAsJsonArray("buckets")) {
+            int bucket = element.getAsInt();
+            if (MerkleTree.isNode(bucket)) {
+                buckets.add(bucket);
+            }
+        }
 
-            return true;
+        long position = 0;
+        long chars = 0;
+        pages:
+        for (int bucket : buckets) {
+            long[] versions = replicationLog.getTree().getBucket(bucket);
+            if (position + versions.length <= from) {
+                position += versions.length;
+                continue;
+            }
 
+            for (long version : versions) {
+                if (position < from) {
+                    position++;
+                    continue;
+                }
+                if (paged && chars >= BUCKET_DATA_CHARS) {
+                    bucketDataMsg.setNext(buckets, position);
+                    break pages;
+                }
+
+                for (ReplicationLog.Entry entry : replicationLog.getEntries(version)) {
+                    String value = replicationLog.valueOf(entry);
+                    if (entry.getType() == ReplicationLog.USER) {
+                        bucketDataMsg.addUser(entry.getKey(), value);
+                    } else {
+                        bucketDataMsg.addActivityMessage(entry.getKey(), value);
+                    }
+                    chars += entry.getKey().length() + value.length();
+                }
+                position++;
+            }
+        }
+
+        con.writeMsg(bucketDataMsg.toJsonString());
+
+        return false;
+    }
+
+    /**
+     * Process the entries of the buckets which differed from a peer's
+     *
+     * @param con
+     * @param receivedJsonObj
+     * @return boolean
+     */
+    private boolean processBucketDataMsg(Connection con, JsonObject receivedJsonObj) {
+        if (!isFromAuthenticatedServer(con)) {
+            return true;
+        }
+
+        PeerSync peerSync = getPeerSync(con);
+        if (peerSync.walking == 0) {
+            return false;
+        }
+
+        mergeEntries(con, receivedJsonObj);
+
+        // more of the buckets to come, the request stays outstanding until the last page
+        if (receivedJsonObj.has("next") && receivedJsonObj.has("buckets")) {
+            BucketRequestMsg bucketRequestMsg = new BucketRequestMsg();
+            for (JsonElement bucket : receivedJsonObj.getAsJsonArray("buckets")) {
+                bucketRequestMsg.addBucket(bucket.getAsInt());
+            }
+            bucketRequestMsg.setFrom(receivedJsonObj.get("next").getAsLong());
+            con.writeMsg(bucketRequestMsg.toJsonString());
+
+            return false;
+        }
+        finishWalkStep(con, peerSync);
+
+        return false;
+    }
+
+    /**
+     * Process a joining server's request for a snapshot. The snapshot is the replication log up
+     * to its version now, users first, streamed in chunks as the joiner acknowledges them.
+     *
+     * @param con
+     * @param receivedJsonObj
+     * @return boolean
+     */
+    private boolean processSnapshotRequestMsg(Connection con, JsonObject receivedJsonObj) {
+        if (!isFromAuthenticatedServer(con)) {
+            return true;
+        }
+
+        int window = receivedJsonObj.has("window") ? receivedJsonObj.get("window").getAsInt() : SNAPSHOT_WINDOW;
+
+        PeerSync peerSync = getPeerSync(con);
+        peerSync.sending = new SnapshotSend(replicationLog.getVersion(),
+                Math.max(1, Math.min(window, MAX_SNAPSHOT_WINDOW)));
+        log.info("streaming a snapshot at version " + peerSync.sending.version + " to a joining server");
+
+        sendSnapshotChunks(con, peerSync.sending);
+
+        return false;
+    }
+
+    /**
+     * Process a chunk of the snapshot this server joined with. Chunks are applied in order; one
+     * which is out of order or fails its checksum is asked for again, with the ones after it.
+     *
+     * @param con
+     * @param receivedJsonObj
+     * @return boolean
+     */
+    private boolean processSnapshotChunkMsg(Connection con, JsonObject receivedJsonObj) {
+        if (!isFromAuthenticatedServer(con)) {
+            return true;
+        }
+
+        PeerSync peerSync = getPeerSync(con);
+        if (!peerSync.receiving || !receivedJsonObj.has("seq") || !receivedJsonObj.has("version")) {
+            return false;
+        }
+
+        int seq = receivedJsonObj.get("seq").getAsInt();
+        if (seq != peerSync.snapshotSeq) {
+            // chunks already in flight behind a missing one are dropped, it is asked for once
+            if (seq > peerSync.snapshotSeq && !peerSync.snapshotNacked) {
+                ackSnapshotChunk(con, peerSync.snapshotSeq, false);
+                peerSync.snapshotNacked = true;
+            }
+
+            return false;
+        }
+
+        String checksum = receivedJsonObj.has("checksum") ? receivedJsonObj.get("checksum").getAsString() : "";
+        CRC32 crc = new CRC32();
+        for (String field : new String[]{"userList", "allJSONMessage"}) {
+            if (receivedJsonObj.has(field) && receivedJsonObj.get(field).isJsonObject()) {
+                for (Map.Entry<String, JsonElement> entry : receivedJsonObj.getAsJsonObject(field).entrySet()) {
+                    updateChecksum(crc, entry.getKey(), entry.getValue().getAsString());
+                }
+            }
+        }
+        if (!checksum.equals(Long.toHexString(crc.getValue()))) {
+            log.warn("snapshot chunk " + seq + " failed its checksum, asking for it again");
+            ackSnapshotChunk(con, seq, false);
+            peerSync.snapshotNacked = true;
+
+            return false;
+        }
+
+        mergeEntries(con, receivedJsonObj);
+        peerSync.snapshotSeq++;
+        peerSync.snapshotNacked = false;
+        ackSnapshotChunk(con, seq, true);
+
+        if (loadingUsers && receivedJsonObj.has("usersComplete") && receivedJsonObj.get("usersComplete").getAsBoolean()) {
+            log.info("snapshot users arrived, " + userInfoList.size() + " users, serving clients");
+            loadingUsers = false;
+        }
+
+        if (receivedJsonObj.has("last") && receivedJsonObj.get("last").getAsBoolean()) {
+            long version = receivedJsonObj.get("version").getAsLong();
+            log.info("snapshot applied in " + (seq + 1) + " chunks, peer log applied up to version " + version);
+
+            peerSync.receiving = false;
+            peerSync.applied = Math.max(peerSync.applied, version);
+            requestDelta(con, peerSync);
+        }
+
+        return false;
+    }
+
+    /**
+     * Process the acknowledgement of a snapshot chunk, which also acknowledges the ones before
+     * it, or the request to send the chunks from one on again
+     *
+     * @param con
+     * @param receivedJsonObj
+     * @return boolean
+     */
+    private boolean processSnapshotAckMsg(Connection con, JsonObject receivedJsonObj) {
+        if (!isFromAuthenticatedServer(con)) {
+            return true;
+        }
+
+        PeerSync peerSync = getPeerSync(con);
+        SnapshotSend send = peerSync.sending;
+        if (send == null || !receivedJsonObj.has("seq")) {
+            return false;
+        }
+
+        int seq = receivedJsonObj.get("seq").getAsInt();
+        boolean ok = !receivedJsonObj.has("ok") || receivedJsonObj.get("ok").getAsBoolean();
+        if (seq <= send.acked || seq >= send.nextSeq) {
+            return false;
+        }
+
+        if (ok) {
+            for (int i = send.acked + 1; i <= seq; i++) {
+                send.starts.remove(i);
+            }
+            send.acked = seq;
+
+            if (send.phase == SnapshotSend.DONE && send.acked == send.nextSeq - 1) {
+                log.info("snapshot of " + send.nextSeq + " chunks sent");
+                peerSync.sending = null;
+
+                return false;
+            }
         } else {
-            log.info("Connected with Server in as user " + username);
+            // go back to the chunk asked for, the entries up to the snapshot's version do not change
+            long[] start = send.starts.get(seq);
+            send.phase = (int) start[0];
+            send.position = start[1];
+            for (int i = seq; i < send.nextSeq; i++) {
+                send.starts.remove(i);
+            }
+            send.nextSeq = seq;
+        }
 
-            LoginSuccMsg loginSuccMsg = new LoginSuccMsg();
-            loginSuccMsg.setInfo("Connected with Server successful");
+        sendSnapshotChunks(con, send);
 
-            String loginSuccJsonStr = loginSuccMsg.toJsonString();
-            con.writeMsg(loginSuccJsonStr);
+        return false;
+    }
+
+    private void requestSnapshot(Connection con) {
+        // ready for the chunks before they can arrive
+        getPeerSync(con).receiving = true;
+        loadingUsers = true;
+
+        SnapshotRequestMsg snapshotRequestMsg = new SnapshotRequestMsg();
+        snapshotRequestMsg.setWindow(SNAPSHOT_WINDOW);
+        con.writeMsg(snapshotRequestMsg.toJsonString());
+    }
+
+    // send chunks until the window is full or the snapshot is all sent
+    private void sendSnapshotChunks(Connection con, SnapshotSend send) {
+        while (send.phase != SnapshotSend.DONE && send.nextSeq - send.acked - 1 < send.window) {
+            SnapshotChunkMsg chunk = new SnapshotChunkMsg();
+            chunk.setSeq(send.nextSeq);
+            chunk.setVersion(send.version);
+            send.starts.put(send.nextSeq, new long[]{send.phase, send.position});
+
+            CRC32 crc = new CRC32();
+            long chars = 0;
+            while (send.phase != SnapshotSend.DONE && chars < SNAPSHOT_CHUNK_CHARS) {
+                if (send.position >= send.version) {
+                    if (send.phase == SnapshotSend.USERS) {
+                        chunk.setUsersComplete(true);
+                        send.phase = SnapshotSend.ACTIVITIES;
+                    } else {
+                        chunk.setLast(true);
+                        send.phase = SnapshotSend.DONE;
+                    }
+                    send.position = 0;
+                    continue;
+                }
+
+                // a version whose entry could not be read has nothing to send
+                List<ReplicationLog.Entry> entries = replicationLog.getEntries(send.position + 1);
+                send.position++;
+                if (entries.isEmpty()) {
+                    continue;
+                }
+                ReplicationLog.Entry entry = entries.get(0);
+
+                boolean user = entry.getType() == ReplicationLog.USER;
+                if (user != (send.phase == SnapshotSend.USERS)) {
+                    continue;
+                }
+                String value = replicationLog.valueOf(entry);
+                if (value == null) {
+                    continue;
+                }
+
+                if (user) {
+                    chunk.addUser(entry.getKey(), value);
+                } else {
+                    chunk.addActivityMessage(entry.getKey(), value);
+                }
+                chars += entry.getKey().length() + value.length();
+            }
+
+            // in the order the chunk is written, which is the order it is read back in
+            for (Map.Entry<String, String> user : chunk.getUserList().entrySet()) {
+                updateChecksum(crc, user.getKey(), user.getValue());
+            }
+            for (Map.Entry<String, String> activity : chunk.getAllJSONMessage().entrySet()) {
+                updateChecksum(crc, activity.getKey(), activity.getValue());
+            }
+            chunk.setChecksum(Long.toHexString(crc.getValue()));
+
+            con.writeMsg(chunk.toJsonString());
+            send.nextSeq++;
+        }
+    }
+
+    private void ackSnapshotChunk(Connection con, int seq, boolean ok) {
+        SnapshotAckMsg snapshotAckMsg = new SnapshotAckMsg();
+        snapshotAckMsg.setSeq(seq);
+        snapshotAckMsg.setOk(ok);
+        con.writeMsg(snapshotAckMsg.toJsonString());
+    }
+
+    private static void updateChecksum(CRC32 crc, String key, String value) {
+        crc.update((key + "\n" + value + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void requestMerkleNode(Connection con, PeerSync peerSync, int node) {
+        MerkleRequestMsg merkleRequestMsg = new MerkleRequestMsg();
+        merkleRequestMsg.setNode(node);
+        con.writeMsg(merkleRequestMsg.toJsonString());
+
+        peerSync.walking++;
+    }
+
+    // one reply of the walk is handled, once none is outstanding the log is followed from the tree's version
+    private void finishWalkStep(Connection con, PeerSync peerSync) {
+        peerSync.walking--;
+
+        if (peerSync.walking == 0) {
+            log.info("hash tree comparison done, peer log applied up to version " + peerSync.walkVersion);
+
+            peerSync.applied = Math.max(peerSync.applied, peerSync.walkVersion);
+            requestDelta(con, peerSync);
+        }
+    }
+
+    // merge the users and activity messages of a SYNC_DELTA or BUCKET_DATA which are not known here yet
+    private void mergeEntries(Connection con, JsonObject receivedJsonObj) {
+        if (receivedJsonObj.has("userList") && receivedJsonObj.get("userList").isJsonObject()) {
+            LinkedHashMap<String, String> added = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> user : receivedJsonObj.getAsJsonObject("userList").entrySet()) {
+                if (userInfoList.putIfAbsent(user.getKey(), user.getValue().getAsString()) == null) {
+                    added.put(user.getKey(), user.getValue().getAsString());
+                }
+            }
+
+            // one write and one sync of the disk for the whole message; the users are known to
+            // peers already, so one failing to be stored here is not a reason to drop it
+            try {
+                userStore.appendAll(added);
+            } catch (IOException e) {
+                log.error("failed to store " + added.size() + " users: " + e);
+            }
+            for (Map.Entry<String, String> user : added.entrySet()) {
+                replicationLog.append(ReplicationLog.USER, user.getKey(), user.getValue(), con);
+            }
+        }
+        if (receivedJsonObj.has("allJSONMessage") && receivedJsonObj.get("allJSONMessage").isJsonObject()) {
+            for (Map.Entry<String, JsonElement> activity
+                    : receivedJsonObj.getAsJsonObject("allJSONMessage").entrySet()) {
+                addActivityMessage(activity.getKey(), activity.getValue().getAsString(), con);
+            }
+        }
+    }
+
+    private boolean isFromAuthenticatedServer(Connection con) {
+        if (!serverConnectionList.contains(con)) {
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    JsonMessage.UNAUTHENTICATED_SERVER));
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private PeerSync getPeerSync(Connection con) {
+        return peerSyncs.computeIfAbsent(con, c -> new PeerSync());
+    }
+
+    private void requestDelta(Connection con, PeerSync peerSync) {
+        if (peerSync.requested || peerSync.walking > 0 || peerSync.isSnapshotting()
+                || peerSync.applied >= peerSync.version) {
+            return;
+        }
+
+        SyncRequestMsg syncRequestMsg = new SyncRequestMsg();
+        syncRequestMsg.setSince(peerSync.applied);
+        con.writeMsg(syncRequestMsg.toJsonString());
+
+        peerSync.requested = true;
+    }
+
+    // Write a snapshot of the users once enough were logged
+    private void snapshotUsers() {
+        HashMap<String, String> users = null;
+        int firstWal = 0;
+
+        try {
+            if (userStore.needsSnapshot()) {
+                // A user is in userInfoList before it is in a WAL, so copying after the roll takes
+                // every user of the WALs the snapshot replaces, and maybe a few of the new one
+                firstWal = userStore.rollWal();
+                users = new HashMap<>(userInfoList);
+            }
+        } catch (IOException e) {
+            log.error("failed to start a new user log: " + e);
+        }
+
+        if (users != null) {
+            try {
+                userStore.writeSnapshot(users, firstWal);
+            } catch (IOException e) {
+                log.error("failed to write the user snapshot: " + e);
+            }
+        }
+    }
+
+    // Replay the stored activities into the replication log, the clock and the seen ids, streamed
+    // from the log one at a time in log order; the search index reads them back on its own thread
+    private void restoreHistory() {
+        activityLog.forEach(activity -> {
+            MessageSniffer.BroadcastHeader header = MessageSniffer.readActivityBroadcast(activity.getJsonMessage());
+            if (header != null && header.getId() != null) {
+                gossip.markSeen(header.getId());
+            }
+
+            clock.update(activity.getTimestamp());
+            replicationLog.append(ReplicationLog.ACTIVITY, activity.getKey(), activity.getJsonMessage(), null);
+            searchIndex.add(activity.getOffset());
+        });
+
+        log.info("restored " + activityLog.size() + " activities");
+    }
+
+    // Register a user made here, on the disk before the registration is confirmed, and in the
+    // replication log. A user which cannot be stored is taken back out again.
+    private boolean addUser(String username, String secret) throws IOException {
+        if (userInfoList.putIfAbsent(username, secret) != null) {
+            return false;
+        }
+
+        try {
+            userStore.append(username, secret);
+        } catch (IOException e) {
+            userInfoList.remove(username, secret);
+            throw e;
+        }
+        replicationLog.append(ReplicationLog.USER, username, secret, null);
+
+        return true;
+    }
+
+    // Store an activity message, recording it in the replication log if it is new here
+    private void addActivityMessage(String key, String activityMessage, Connection origin) {
+        MessageSniffer.BroadcastHeader header = MessageSniffer.readActivityBroadcast(activityMessage);
+        long hlc = header == null ? 0 : header.getHlc();
+
+        // the search index takes the activities in the order of their offsets
+        synchronized (activityLog) {
+            if (!activityLog.add(key, hlc, activityMessage)) {
+                return;
+            }
+            replicationLog.append(ReplicationLog.ACTIVITY, key, activityMessage, origin);
+            searchIndex.add(activityLog.offsetOf(key));
+        }
+        clock.update(hlc);
+    }
+
+    /**
+     * Process a validated activity broadcast from other servers, relaying the message exactly
+     * as it was received. Copies of an activity already seen are dropped.
+     *
+     * @param con
+     * @param msg
+     * @param activityId the id of the activity, null if the sender did not give one
+     * @param sentAt     when the origin server sent it, 0 if unknown
+     * @param hlc        the timestamp the origin server gave it, 0 if unknown
+     * @return boolean
+     */
+    private boolean processActivityBroadcastMsg(Connection con, String msg, String activityId, long sentAt,
+                                                long hlc) {
+        log.debug("Activity broadcast message received from port: " + con.getSocket().getPort());
+
+        if (activityId == null) {
+            // from a server which does not give ids, the content stands in for the id
+            activityId = "#" + Long.toHexString(Hashes.mix(Hashes.hash(0, msg)));
+        }
+        if (!gossip.markSeen(activityId)) {
+            log.debug("Activity " + activityId + " already seen, dropped");
 
-            clientConnectionList.add(con);
+            return false;
+        }
+        gossip.recordDelivery(sentAt);
+        // activities made here later are ordered after this one
+        clock.update(hlc);
+
+        ByteBuffer frame = Frames.encode(msg);
+
+        broadcastToAllClients(frame);
+        forwardToOtherServers(con, frame);
+
+        return false;
+    }
+
+    /**
+     * Process activity message from client
+     *
+     * @param con
+     * @param receivedJsonObj
+     * @return boolean
+     */
+    private boolean processActivityMsg(Connection con, JsonObject receivedJsonObj) {
+        log.info("Activity message received from port: " + con.getSocket().getPort());
+
+        // Validate activity message
+        if (!isActivityMsgValid(con, receivedJsonObj)) {
+            return true;
+        }
+
+        // Check username and secret
+        String username = receivedJsonObj.get("username").getAsString();
+        String secret = receivedJsonObj.get("secret").getAsString();
+
+        if (!username.equals(JsonMessage.ANONYMOUS_USERNAME) && !hasClientInfo(username, secret)) {
+            // Send login failed info
+            log.info("Client auth failed");
+
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE, "Client auth failed"));
+
+            return true;
+        }
+
+        log.debug("Broadcast activity message received from client");
+        // Convert it to activity broadcast message
+        JsonObject actJsonObj = receivedJsonObj.get("activity").getAsJsonObject();
+        String content = actJsonObj.get("object").getAsString();
+
+        Date date = new Date();
+        String activityId = gossip.newActivityId();
+
+        long hlc = clock.now();
+
+        ActBroadMsg actBroadMsg = new ActBroadMsg();
+        actBroadMsg.setId(activityId);
+        actBroadMsg.setTime(date.getTime());
+        actBroadMsg.setHlc(hlc);
+        actBroadMsg.setActor(username);
+        actBroadMsg.setObject(content);
+
+        String activityJsonStr = actBroadMsg.toJsonString();
+
+        // Store the Activity message to the hashMap, save its username and activity id
+        SimpleDateFormat dateFormatter = new SimpleDateFormat("hh:mm:ss");
+        log.info("Activity Message Send at(Time): " + dateFormatter.format(date));
+        // stored, and sent to clients and to peers, by the pipeline's stages
+        pipeline.publish(username + "," + activityId, hlc, activityJsonStr, Frames.encode(activityJsonStr));
+
+        return false;
+    }
+
+    /*
+     * the store stage: a batch of activities made here, added to the log under one lock
+     */
+    private void storeActivities(List<ActivityPipeline.Entry> batch) {
+        synchronized (activityLog) {
+            for (ActivityPipeline.Entry entry : batch) {
+                if (activityLog.add(entry.getKey(), entry.getHlc(), entry.getJson())) {
+                    replicationLog.append(ReplicationLog.ACTIVITY, entry.getKey(), entry.getJson(), null);
+                    searchIndex.add(activityLog.offsetOf(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    // the client fan-out stage
+    private void broadcastActivities(List<ActivityPipeline.Entry> batch) {
+        for (ActivityPipeline.Entry entry : batch) {
+            if (clientFeeder != null) {
+                clientFeeder.broadcast(entry.getFrame());
+            } else {
+                broadcastToAllClients(entry.getFrame());
+            }
+        }
+    }
+
+    // the peer fan-out stage
+    private void forwardActivities(List<ActivityPipeline.Entry> batch) {
+        for (ActivityPipeline.Entry entry : batch) {
+            forwardToOtherServers(null, entry.getFrame());
+        }
+    }
+
+    // Process authenticate message
+    private boolean processAuthMsg(Connection con, JsonObject receivedJsonObj) {
+        // This server has too many children
+        if (serverConnectionList.size() >= SERVER_CONNECTION_UPPER_LIMIT) {
+            log.info("Auth failure: too many servers connecting to this server");
+
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.AUTHENTICATION_FAIL,
+                    "Auth failure: too many servers connecting to this server"));
+
+            return true;
+        }
+        // Json message format incorrect
+        else if (!receivedJsonObj.has("secret")) {
+            log.info("Auth failed: the supplied secret is incorrect");
+
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.AUTHENTICATION_FAIL,
+                    "the supplied secret is incorrect"));
+
+            return true;
+        }
+
+        String secret = receivedJsonObj.get("secret").getAsString();
+
+        if (!secret.equals(Settings.getSecret())) {
+            log.info("Auth failed");
+
+            AuthFailMsg authFailedMsg = new AuthFailMsg();
+            authFailedMsg.setInfo("the supplied secret is incorrect: " + secret);
+
+            String authFailedJsonStr = authFailedMsg.toJsonString();
+            con.writeMsg(authFailedJsonStr);
+
+            return true;
+        }
+        // Server already authenticated, send invalid message
+        else if (!addServer(con)) {
+            return true;
+        }
+        // Connect with server
+        else {
+            log.info("Auth succeeded");
+
+            // tells a child of this version at once that it may ask for replication, it would
+            // otherwise wait for the first announce
+            if (heartbeating.contains(con)) {
+                con.writeFrame(HEARTBEAT_FRAME);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Process the Client authenticate and give login success
+     *
+     * @param con
+     * @param receivedJsonObj
+     * @return
+     */
+
+    private boolean processClientAuthMsg(Connection con, JsonObject receivedJsonObj) {
+        // Validate login message format
+        if (!isUserInfoMsgValid(con, receivedJsonObj)) {
+            return true;
+        }
+
+        String username = receivedJsonObj.get("username").getAsString();
+        // Check if the Server's Userlist have the user
+        if (!userInfoList.containsKey(username)) {
+
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.LOGIN_FAILED,
+                    "The Server do not have this user"));
+
+            return true;
+
+        } else {
+            log.info("Connected with Server in as user " + username);
+
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.LOGIN_SUCCESS,
+                    "Connected with Server successful"));
+
+            registerClient(con);
             return false;
         }
     }
@@ -630,35 +1682,103 @@ public class ServerControl extends Control {
      * @param jsonStr
      */
     private void broadcastToAllOtherServers(String jsonStr) {
+        broadcastToAllOtherServers(Frames.encode(jsonStr));
+    }
+
+    // the frame is encoded once and shared by every connection
+    private void broadcastToAllOtherServers(ByteBuffer frame) {
+        ArrayList<Connection> slowConsumers = null;
+
         for (Connection con : serverConnectionList) {
-            con.writeMsg(jsonStr);
+            if (con.offerFrame(frame, Settings.getSlowConsumerPolicy()) == OutboundQueue.DISCONNECT) {
+                slowConsumers = addSlowConsumer(slowConsumers, con);
+            }
         }
+
+        disconnectSlowConsumers(slowConsumers);
     }
 
     /**
-     * Forward to the other servers
+     * Forward an activity to the other servers, all of them or a random few when gossiping
      *
-     * @param current
-     * @param jsonStr
+     * @param current the server the activity came from, null if it was made here
+     * @param frame
      */
-    private String forwardToOtherServers(Connection current, String jsonStr) {
+    private String forwardToOtherServers(Connection current, ByteBuffer frame) {
         String result = "";
-        for (Connection con : serverConnectionList) {
-            if (current.getSocket().getPort() != con.getSocket().getPort()) {
-                con.writeMsg(jsonStr);
+        ArrayList<Connection> slowConsumers = null;
+
+        for (Connection con : gossip.choosePeers(serverConnectionList, current)) {
+            if (con.offerFrame(frame, Settings.getSlowConsumerPolicy()) == OutboundQueue.DISCONNECT) {
+                slowConsumers = addSlowConsumer(slowConsumers, con);
             }
         }
+
+        disconnectSlowConsumers(slowConsumers);
         return result;
     }
 
     /**
      * Broadcast to all clients which is adjacent to the server
      *
-     * @param jsonStr
+     * @param frame
      */
-    private void broadcastToAllClients(String jsonStr) {
+    private void broadcastToAllClients(ByteBuffer frame) {
+        if (shards != null) {
+            shards.broadcast(frame);
+            return;
+        }
+
+        ArrayList<Connection> slowConsumers = null;
+
         for (Connection con : clientConnectionList) {
-            con.writeMsg(jsonStr);
+            if (con.offerFrame(frame, Settings.getSlowConsumerPolicy()) == OutboundQueue.DISCONNECT) {
+                slowConsumers = addSlowConsumer(slowConsumers, con);
+            }
+        }
+
+        disconnectSlowConsumers(slowConsumers);
+    }
+
+    private ArrayList<Connection> addSlowConsumer(ArrayList<Connection> slowConsumers, Connection con) {
+        if (slowConsumers == null) {
+            slowConsumers = new ArrayList<>();
+        }
+        slowConsumers.add(con);
+
+        return slowConsumers;
+    }
+
+    /**
+     * Close connections which fell too far behind. Clients are redirected to the least loaded
+     * server first, peer servers are simply closed.
+     *
+     * @param slowConsumers the connections to close, may be null
+     */
+    private void disconnectSlowConsumers(ArrayList<Connection> slowConsumers) {
+        if (slowConsumers == null) {
+            return;
+        }
+
+        for (Connection con : slowConsumers) {
+            log.info("disconnecting slow consumer " + Settings.socketAddress(con.getSocket()));
+
+            ServerSettings server = removeClient(con) ? minLoadServer() : null;
+            serverConnectionList.remove(con);
+
+            if (server != null) {
+                RedirectMsg redirectMsg = new RedirectMsg();
+                redirectMsg.setHost(server.getRemoteHostname());
+                redirectMsg.setPort(server.getRemotePort());
+                redirectMsg.setId(server.getId());
+
+                con.closeWithMsg(redirectMsg.toJsonString());
+            } else {
+                InvalidMsg invalidMsg = new InvalidMsg();
+                invalidMsg.setInfo("connection closed, too many messages waiting to be sent");
+
+                con.closeWithMsg(invalidMsg.toJsonString());
+            }
         }
     }
 
@@ -681,9 +1801,8 @@ public class ServerControl extends Control {
      */
     private boolean containCommandField(Connection con, JsonObject receivedJsonObj) {
         if (!receivedJsonObj.has("command")) {
-            InvalidMsg invalidMsg = new InvalidMsg();
-            invalidMsg.setInfo("Message must contain field command");
-            con.writeMsg(invalidMsg.toJsonString());
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Message must contain field command"));
 
             return false;
         }
@@ -691,16 +1810,14 @@ public class ServerControl extends Control {
     }
 
     private boolean isUserInfoMsgValid(Connection con, JsonObject receivedJsonObj) {
-        InvalidMsg invalidMsg = new InvalidMsg();
-
         if (!receivedJsonObj.has("username")) {
-            invalidMsg.setInfo("Message must contain field username");
-            con.writeMsg(invalidMsg.toJsonString());
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Message must contain field username"));
 
             return false;
         } else if (!receivedJsonObj.has("secret")) {
-            invalidMsg.setInfo("Message must contain field secret");
-            con.writeMsg(invalidMsg.toJsonString());
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Message must contain field secret"));
 
             return false;
         } else {
@@ -710,9 +1827,8 @@ public class ServerControl extends Control {
 
     private boolean isActivityMsgValid(Connection con, JsonObject receivedJsonObj) {
         if (!receivedJsonObj.has("activity")) {
-            InvalidMsg invalidMsg = new InvalidMsg();
-            invalidMsg.setInfo("Message must contain field activity");
-            con.writeMsg(invalidMsg.toJsonString());
+            con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                    "Message must contain field activity"));
 
             return false;
         }
@@ -754,9 +1870,8 @@ public class ServerControl extends Control {
     private boolean isServerAuthenticated(Connection con) {
         for (Connection connection : serverConnectionList) {
             if (con.getSocket().getPort() == connection.getSocket().getPort()) {
-                InvalidMsg invalidMsg = new InvalidMsg();
-                invalidMsg.setInfo(JsonMessage.REPEATED_AUTHENTICATION);
-                con.writeMsg(invalidMsg.toJsonString());
+                con.writeFrame(MessageCodecs.infoFrame(JsonMessage.INVALID_MESSAGE,
+                        JsonMessage.REPEATED_AUTHENTICATION));
 
                 return true;
             }
@@ -765,6 +1880,67 @@ public class ServerControl extends Control {
         return false;
     }
 
+    /*
+     * add an authenticated server, unless it is known already; the check and the add are one
+     * step, connections authenticate in parallel
+     */
+    private boolean addServer(Connection con) {
+        synchronized (serverConnectionList) {
+            if (isServerAuthenticated(con)) {
+                return false;
+            }
+            serverConnectionList.add(con);
+            if (shards != null) {
+                // shards are for clients, a link to a server is processed like an outgoing one
+                con.processOnWorkers();
+            }
+
+            return true;
+        }
+    }
+
+    /*
+     * add a logged in client, unless the server has as many as it takes
+     */
+    private boolean addClient(Connection con) {
+        synchronized (clientConnectionList) {
+            if (clientConnectionList.size() >= CLIENT_CONNECTION_UPPER_LIMIT) {
+                return false;
+            }
+            registerClient(con);
+
+            return true;
+        }
+    }
+
+    private void registerClient(Connection con) {
+        synchronized (clientConnectionList) {
+            if (clientConnectionList.contains(con)) {
+                return;
+            }
+            clientConnectionList.add(con);
+        }
+
+        if (shards != null) {
+            shards.attach(con);
+        }
+    }
+
+    /*
+     * remove a client, false if it was not one
+     */
+    private boolean removeClient(Connection con) {
+        if (!clientConnectionList.remove(con)) {
+            return false;
+        }
+
+        if (shards != null) {
+            shards.detach(con);
+        }
+
+        return true;
+    }
+
     private ServerSettings findServer(String id,String rp,int port) {
         for (ServerSettings serverInfo : serverInfoList) {
             if (serverInfo.getId().equals(id)&&serverInfo.getRemoteHostname().equals(rp)&&serverInfo.getRemotePort()==port) {
@@ -782,53 +1958,166 @@ public class ServerControl extends Control {
     /**
      * Find the minLoad Server
      *
-     * @return ServerSettings the minimum load server
+     * @return ServerSettings the minimum load server, or null if no other server is known
      */
     private ServerSettings minLoadServer() {
-        int minLoad = serverInfoList.get(0).getServerLoad();
-        int index = 0;
-        for (int i = 1; i < serverInfoList.size(); i++) {
-            int load = serverInfoList.get(i).getServerLoad();
-            if (load < minLoad) {
-                minLoad = load;
-                index = i;
+        ServerSettings minLoadServer = null;
+
+        // the iterator is a snapshot, servers announced meanwhile are left out
+        for (ServerSettings serverInfo : serverInfoList) {
+            if (minLoadServer == null || serverInfo.getServerLoad() < minLoadServer.getServerLoad()) {
+                minLoadServer = serverInfo;
             }
         }
-        return serverInfoList.get(index);
+        return minLoadServer;
     }
 
+    /*
+     * remember a connection whose other end advertised that it sends and takes heartbeats
+     */
+    private void noteHeartbeat(Connection con, JsonObject receivedJsonObj) {
+        JsonElement flag = receivedJsonObj.get("heartbeat");
 
-    private void synchronizePool(JsonObject receivedJsonObj) {
-
-        Gson gson = new Gson();
+        if (flag != null && flag.isJsonPrimitive() && flag.getAsJsonPrimitive().isBoolean() && flag.getAsBoolean()) {
+            advertised(con);
+        }
+    }
 
-        // Synchronize the User list. modified for Project 2
-        String userResult = receivedJsonObj.get("userList").toString();
-        if (!userResult.equals("")) {
-            HashMap<String, String> x = gson.fromJson(userResult, HashMap.class);
-            Iterator<Map.Entry<String, String>> iterator = x.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<String, String> pair = (Map.Entry<String, String>) iterator.next();
-                if (!userInfoList.containsKey(pair.getKey())) {
-                    userInfoList.put(pair.getKey().toString(), pair.getValue().toString());
-                }
+    /*
+     * the other end of a connection is of this version; a joining server asks its parent for
+     * the snapshot it waited to ask for
+     */
+    private void advertised(Connection con) {
+        heartbeating.add(con);
+
+        PeerSync peerSync = peerSyncs.get(con);
+        if (peerSync != null && peerSync.joining) {
+            peerSync.joining = false;
+            if (replicationLog.getVersion() == 0) {
+                requestSnapshot(con);
             }
         }
+    }
 
-        // Synchronize the activity message. modified for Project 2
-        String activityMessageResult = receivedJsonObj.get("allJSONMessage").toString();
-        if (!activityMessageResult.equals("")) {
-            HashMap<String, String> x = gson.fromJson(activityMessageResult, HashMap.class);
-            Iterator<Map.Entry<String, String>> iterator = x.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<String, String> pair = (Map.Entry<String, String>) iterator.next();
-                if (!allActivityMessage.containsKey(pair.getKey())) {
-                    allActivityMessage.put(pair.getKey().toString(), pair.getValue().toString());
-                }
-            }
+    /*
+     * how long a connection may stay silent before it is closed. Every received line counts. A
+     * peer server of an older version is not sent heartbeats but announces itself every activity
+     * interval; a client of an older version which logged in is not sent heartbeats and may stay
+     * silent for as long as a user reads without posting, so it is given the longer legacy timeout.
+     */
+    private long idleLimitOf(Connection con) {
+        if (heartbeating.contains(con)) {
+            return Settings.getIdleTimeoutMillis();
+        }
+        if (serverConnectionList.contains(con)) {
+            return Math.max(Settings.getIdleTimeoutMillis(), 3L * Settings.getActivityInterval());
+        }
+        if (clientConnectionList.contains(con)) {
+            return Math.max(Settings.getIdleTimeoutMillis(), Settings.getLegacyIdleTimeoutMillis());
+        }
+
+        // not logged in or authenticated yet
+        return Settings.getIdleTimeoutMillis();
+    }
+
+    /*
+     * start checking a connection for silence every heartbeat interval
+     */
+    private void watchIdle(Connection con) {
+        if (Settings.getHeartbeatMillis() > 0) {
+            getTimers().schedule(new IdleCheck(con), Settings.getHeartbeatMillis(), TimeUnit.MILLISECONDS);
         }
     }
 
+    /*
+     * the idle check of one connection, on the timer wheel until the connection closes
+     */
+    private class IdleCheck implements Runnable {
+        private final Connection con;
+        // how long nothing was received, in heartbeat intervals
+        private int silent = 0;
+
+        private IdleCheck(Connection con) {
+            this.con = con;
+        }
+
+        @Override
+        public void run() {
+            if (!con.isOpen() || term) {
+                return;
+            }
+
+            if (con.checkHeard()) {
+                silent = 0;
+            } else if (++silent * Settings.getHeartbeatMillis() >= idleLimitOf(con)) {
+                log.info("closing connection " + Settings.socketAddress(con.getSocket()) + ", silent for "
+                        + silent * Settings.getHeartbeatMillis() / 1000 + " seconds");
+
+                // the reader or IoLoop sees the close and reports it through connectionClosed
+                con.abort();
+                return;
+            }
+
+            // a peer server only answers with heartbeats of its own, so it is sent one regardless
+            if (heartbeating.contains(con) && (silent > 0 || serverConnectionList.contains(con))) {
+                con.writeFrame(HEARTBEAT_FRAME);
+            }
+
+            getTimers().schedule(this, Settings.getHeartbeatMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
 
+    /*
+     * replication state of one peer server connection
+     */
+    private static class PeerSync {
+        // the last version of the peer's log it announced
+        private long version = 0;
+        // the version of the peer's log applied here
+        private long applied = 0;
+        // a SYNC_REQUEST is waiting for its delta
+        private boolean requested = false;
+        // replies of the hash tree comparison still outstanding
+        private int walking = 0;
+        // the version of the peer's log its hash tree was compared at
+        private long walkVersion = 0;
+        // the snapshot to join with is asked for once the peer advertises it is of this version
+        private boolean joining = false;
+        // a snapshot of the peer is arriving, the next chunk expected and whether it was asked for again
+        private boolean receiving = false;
+        private int snapshotSeq = 0;
+        private boolean snapshotNacked = false;
+        // a snapshot is being sent to the peer, null otherwise
+        private SnapshotSend sending = null;
+
+        // deltas and the hash tree comparison wait for a snapshot either way
+        private boolean isSnapshotting() {
+            return receiving || sending != null;
+        }
+    }
 
+    /*
+     * a snapshot being streamed to a joining server: the replication log up to version, the user
+     * entries and then the activity entries
+     */
+    private static class SnapshotSend {
+        private static final int USERS = 0;
+        private static final int ACTIVITIES = 1;
+        private static final int DONE = 2;
+
+        private final long version;
+        private final int window;
+        private int phase = USERS;
+        // the next entry of the replication log to look at
+        private long position = 0;
+        private int nextSeq = 0;
+        private int acked = -1;
+        // where each unacknowledged chunk started, phase and position, to send it again from
+        private final HashMap<Integer, long[]> starts = new HashMap<>();
+
+        private SnapshotSend(long version, int window) {
+            this.version = version;
+            this.window = window;
+        }
+    }
 }
@@ -0,0 +1,307 @@
+package activitystreamer.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps the registered users on disk: a write-ahead log of every user added, made durable before
+ * the registration is acknowledged, and a snapshot of all users written every so often. WAL
+ * files are numbered; a snapshot records the first WAL it does not cover, so after it is in
+ * place the WALs it covers are deleted, and a crash at any point leaves a snapshot and WALs which
+ * together hold every user. Without a data directory users are only kept in memory.
+ *
+ * @author Huanan Li
+ */
+public class UserStore {
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int SNAPSHOT_MAGIC = 0x55535231;
+    private static final String SNAPSHOT = "users.snapshot";
+    private static final String WAL_PREFIX = "users-";
+    private static final String WAL_SUFFIX = ".wal";
+    // a snapshot is written after this many WAL records, or this long after the last one
+    private static final int SNAPSHOT_RECORDS = 1024;
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 60 * 1000;
+
+    private final File directory;
+    private FileChannel wal;
+    private int walNumber = 0;
+    private int walRecords = 0;
+    private long lastSnapshot = System.currentTimeMillis();
+
+    /**
+     * Open the user store of a data directory
+     *
+     * @param dataDirectory the data directory, null to keep users in memory only
+     */
+    public UserStore(String dataDirectory) throws IOException {
+        if (dataDirectory == null) {
+            directory = null;
+            return;
+        }
+
+        directory = new File(dataDirectory, "users");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory " + directory);
+        }
+    }
+
+    /**
+     * Read the snapshot and replay the WALs after it, then start a new WAL
+     *
+     * @return the stored users, username to secret
+     */
+    public synchronized HashMap<String, String> load() throws IOException {
+        HashMap<String, String> users = new HashMap<>();
+        if (directory == null) {
+            return users;
+        }
+
+        long start = System.currentTimeMillis();
+        int firstWal = readSnapshot(users);
+
+        int[] numbers = walNumbers();
+        for (int number : numbers) {
+            if (number >= firstWal) {
+                replay(walFile(number), users);
+            }
+        }
+
+        // append to a new WAL, so a torn record at the end of the last one is never followed
+        int last = numbers.length == 0 ? firstWal - 1 : numbers[numbers.length - 1];
+        openWal(Math.max(last + 1, firstWal));
+
+        log.info("loaded " + users.size() + " users in " + (System.currentTimeMillis() - start) + " ms");
+
+        return users;
+    }
+
+    /**
+     * Add a user to the WAL, returning once it is on the disk
+     *
+     * @param username the username
+     * @param secret   the secret
+     */
+    public void append(String username, String secret) throws IOException {
+        appendAll(Collections.singletonMap(username, secret));
+    }
+
+    /**
+     * Add users to the WAL in one write, returning once they are on the disk. A batch costs one
+     * sync of the disk however many users it has.
+     *
+     * @param users the users, username to secret
+     */
+    public synchronized void appendAll(Map<String, String> users) throws IOException {
+        if (wal == null || users.isEmpty()) {
+            return;
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        for (Map.Entry<String, String> user : users.entrySet()) {
+            byte[] payload = encode(user.getKey(), user.getValue());
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        }
+
+        ByteBuffer batch = ByteBuffer.wrap(records.toByteArray());
+        while (batch.hasRemaining()) {
+            wal.write(batch);
+        }
+        wal.force(false);
+
+        walRecords += users.size();
+    }
+
+    /*
+     * whether enough was logged since the last snapshot to write another one
+     */
+    public synchronized boolean needsSnapshot() {
+        return wal != null && walRecords > 0 && (walRecords >= SNAPSHOT_RECORDS
+                || System.currentTimeMillis() - lastSnapshot >= SNAPSHOT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Start a new WAL for a snapshot. The users are copied after it, so the copy holds at least
+     * the users in the WALs before the new one.
+     *
+     * @return int the number of the new WAL, to pass to writeSnapshot
+     */
+    public synchronized int rollWal() throws IOException {
+        wal.close();
+        openWal(walNumber + 1);
+        lastSnapshot = System.currentTimeMillis();
+
+        return walNumber;
+    }
+
+    /**
+     * Write a snapshot of the users, then delete the WALs it covers. Appends meanwhile go to the
+     * WAL started by rollWal.
+     *
+     * @param users    the users, at least those in the WALs before firstWal
+     * @param firstWal the WAL returned by rollWal
+     */
+    public void writeSnapshot(Map<String, String> users, int firstWal) throws IOException {
+        File temp = new File(directory, SNAPSHOT + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(firstWal);
+            out.writeInt(users.size());
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                out.writeUTF(user.getKey());
+                out.writeUTF(user.getValue());
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temp.toPath(), new File(directory, SNAPSHOT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (int number : walNumbers()) {
+            if (number < firstWal && !walFile(number).delete()) {
+                log.warn("failed to delete " + walFile(number));
+            }
+        }
+
+        log.info("user snapshot of " + users.size() + " users written");
+    }
+
+    /*
+     * read the snapshot into users, returning the first WAL it does not cover
+     */
+    private int readSnapshot(Map<String, String> users) throws IOException {
+        File file = new File(directory, SNAPSHOT);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(file + " is not a user snapshot");
+            }
+            int firstWal = in.readInt();
+            int count = in.readInt();
+            HashMap<String, String> read = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                read.put(in.readUTF(), in.readUTF());
+            }
+
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException(file + " is corrupt");
+            }
+
+            users.putAll(read);
+
+            return firstWal;
+        }
+    }
+
+    /*
+     * add the users of a WAL, up to the first record which is torn or corrupt
+     */
+    private void replay(File file, Map<String, String> users) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || length > 1 << 20) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (IOException e) {
+                    // a record cut short by a crash
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("corrupt record in " + file + ", ignoring the rest of it");
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                users.put(record.readUTF(), record.readUTF());
+            }
+        }
+    }
+
+    private void openWal(int number) throws IOException {
+        walNumber = number;
+        walRecords = 0;
+        wal = new RandomAccessFile(walFile(number), "rw").getChannel();
+        wal.position(wal.size());
+    }
+
+    private int[] walNumbers() {
+        String[] names = directory.list((dir, name) -> name.startsWith(WAL_PREFIX) && name.endsWith(WAL_SUFFIX));
+        if (names == null) {
+            return new int[0];
+        }
+
+        int[] numbers = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            numbers[i] = Integer.parseInt(names[i].substring(WAL_PREFIX.length(), names[i].length() - WAL_SUFFIX.length()));
+        }
+        Arrays.sort(numbers);
+
+        return numbers;
+    }
+
+    private File walFile(int number) {
+        return new File(directory, WAL_PREFIX + String.format("%010d", number) + WAL_SUFFIX);
+    }
+
+    private static byte[] encode(String username, String secret) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(username);
+        out.writeUTF(secret);
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+package activitystreamer.util;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Measures the bytes allocated to fan one activity out to a number of subscribers, each with an
+ * OutboundQueue like a Connection has. The shared path encodes the message once with
+ * Frames.encode and queues a view of the frame per subscriber, the way broadcasts are sent; the
+ * per-subscriber path encodes the message again for every subscriber, the way each connection
+ * did when it wrote the String itself. Draining the queues is not counted.
+ * <p>
+ * Needs a JVM which counts the bytes allocated by a thread, such as HotSpot. Run it with the
+ * classes and lib/* on the class path:
+ * <pre>
+ * java activitystreamer.util.BroadcastBenchmark [subscribers...]
+ * </pre>
+ * The subscribers default to 1, 100 and 10000.
+ *
+ * @author Huanan Li
+ */
+public class BroadcastBenchmark {
+    // broadcasts measured at a time, well inside the message limit of a queue
+    private static final int ROUND = 64;
+    private static final int ROUNDS = 200;
+    // an activity broadcast of typical size
+    private static final String MSG = "{\"id\":\"k2m9q1x7.1\",\"time\":1792215406838,\"hlc\":117454628902535168,"
+            + "\"activity\":{\"object\":\"an activity with a body of a more typical length, sent to every one of"
+            + " the subscribers of the server, and to every other server\",\"authenticated_user\":\"bob\"},"
+            + "\"command\":\"ACTIVITY_BROADCAST\"}";
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int[] counts = args.length == 0 ? new int[]{1, 100, 10000} : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            counts[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println((MSG.length() + 1) + " byte activity, bytes allocated per broadcast");
+        System.out.printf("%12s %16s %16s%n", "subscribers", "per subscriber", "shared frame");
+        for (int subscribers : counts) {
+            ArrayList<OutboundQueue> queues = new ArrayList<>();
+            for (int i = 0; i < subscribers; i++) {
+                queues.add(new OutboundQueue(ROUND, Long.MAX_VALUE));
+            }
+
+            // the first half of the rounds warms up
+            measure(queues, false);
+            measure(queues, true);
+            System.out.printf("%12d %16d %16d%n", subscribers, measure(queues, false), measure(queues, true));
+        }
+    }
+
+    /*
+     * the bytes allocated per broadcast, averaged over the rounds
+     */
+    private static long measure(ArrayList<OutboundQueue> queues, boolean shared) {
+        long thread = Thread.currentThread().getId();
+        long allocated = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < ROUND; i++) {
+                if (shared) {
+                    ByteBuffer frame = Frames.encode(MSG);
+                    for (OutboundQueue queue : queues) {
+                        queue.offer(frame.duplicate(), SlowConsumerPolicy.DROP_NEWEST);
+                    }
+                } else {
+                    for (OutboundQueue queue : queues) {
+                        queue.offer(Frames.encode(MSG), SlowConsumerPolicy.DROP_NEWEST);
+                    }
+                }
+            }
+            allocated += threads.getThreadAllocatedBytes(thread) - before;
+
+            for (OutboundQueue queue : queues) {
+                queue.claimFlush();
+                while (queue.drain() != null) {
+                    // the writer's part, not measured
+                }
+            }
+        }
+
+        return allocated / ((long) ROUNDS * ROUND);
+    }
+}
@@ -5,65 +5,373 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
 
 
-public class Connection extends Thread {
+public class Connection implements Runnable {
     protected static final Logger log = LogManager.getLogger();
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    // drains outbound queues for the thread transport, a thread only exists while a flush runs
+    private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread writer = new Thread(r, "connection-writer");
+        writer.setDaemon(true);
+        return writer;
+    });
+    // lines received but not processed yet, beyond which the connection stops reading
+    private static final int MAX_BACKLOG = 256;
+    // processes the received lines of every connection, each connection's in order
+    private static ForkJoinPool workers;
     protected BufferedReader inreader;
-    protected boolean term = false;
+    protected volatile boolean term = false;
     protected Socket socket = null;
     private DataInputStream in;
     private DataOutputStream out;
-    private PrintWriter outwriter;
-    private boolean open = false;
+    // set when the socket is owned by an IoLoop instead of a reader thread
+    private IoLoop.Session session;
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final SerialExecutor inbox;
+    private final Semaphore backlog = new Semaphore(MAX_BACKLOG);
+    // set while an IoLoop has to leave the socket unread
+    private volatile boolean readPaused = false;
+    // set by every line received, cleared by the idle check
+    private volatile boolean heard = true;
+    // only touched by the writer holding the flush claim
+    private byte[] writeBuffer;
+    private volatile boolean open = false;
 
     public Connection(Socket socket) throws IOException {
-        in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
-        inreader = new BufferedReader(new InputStreamReader(in));
-        outwriter = new PrintWriter(out, true);
+        this(socket, workers());
+    }
 
+    /**
+     * @param socket the connected socket
+     * @param pool   where the received lines are processed, one at a time and in order
+     */
+    public Connection(Socket socket, Executor pool) throws IOException {
         this.socket = socket;
-        open = true;
+        this.inbox = new SerialExecutor(pool);
+        // the writer coalesces what is queued into as few writes as it can, Nagle's algorithm
+        // would only hold back the last of them until the peer's delayed ack
+        socket.setTcpNoDelay(true);
+
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            // nio transport, the selector loop reads lines and delivers them
+            open = true;
+            session = IoLoop.next().newSession(this, channel);
+            session.open();
+        } else {
+            in = new DataInputStream(socket.getInputStream());
+            out = new DataOutputStream(socket.getOutputStream());
+            inreader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+
+            open = true;
 
-        start();
+            // the read loop in run() gets its own thread, virtual when that transport is chosen
+            if (Settings.isVirtualTransport()) {
+                VirtualThreads.start(this);
+            } else {
+                new Thread(this).start();
+            }
+        }
+    }
+
+    private static synchronized ForkJoinPool workers() {
+        if (workers == null) {
+            // async mode, the tasks are independent and run in the order they are submitted
+            workers = new ForkJoinPool(Settings.getWorkerThreads(), pool -> {
+                ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                worker.setName("message-worker-" + worker.getPoolIndex());
+                worker.setDaemon(true);
+                return worker;
+            }, null, true);
+        }
+
+        return workers;
     }
 
     /*
-     * returns true if the message was written, otherwise false
+     * returns true if the message was queued for writing, otherwise false. The socket is
+     * written later by the writer of this connection, never on the caller's thread.
      */
     public boolean writeMsg(String msg) {
-        if (open) {
-            outwriter.println(msg);
+        return writeFrame(Frames.encode(msg));
+    }
+
+    /**
+     * Queue an encoded frame. The frame may be shared with other connections, only a view of it
+     * is queued so its bytes are never copied or changed.
+     *
+     * @param frame a frame from Frames.encode
+     * @return true if the frame was queued for writing, otherwise false
+     */
+    public boolean writeFrame(ByteBuffer frame) {
+        if (open && outbound.offer(frame.duplicate())) {
+            if (outbound.claimFlush()) {
+                startWriter();
+            }
 
             return true;
         }
 
+        if (open) {
+            log.debug("outbound queue full or closed, dropping message to " + Settings.socketAddress(socket));
+        }
+
+        return false;
+    }
+
+    /**
+     * Queue a fan-out frame, applying the slow consumer policy if this connection is behind
+     *
+     * @param frame  a frame from Frames.encode, usually shared by every target of the fan-out
+     * @param policy what to do when the outbound queue is over its limits
+     * @return OutboundQueue.QUEUED, DROPPED or DISCONNECT
+     */
+    public int offerFrame(ByteBuffer frame, SlowConsumerPolicy policy) {
+        if (!open) {
+            return OutboundQueue.DROPPED;
+        }
+
+        int result = outbound.offer(frame.duplicate(), policy);
+        if (result == OutboundQueue.QUEUED && outbound.claimFlush()) {
+            startWriter();
+        }
+
+        return result;
+    }
+
+    /**
+     * Drop whatever is still queued, write one last message and close the connection once it
+     * has been written
+     *
+     * @param msg the last message
+     */
+    public void closeWithMsg(String msg) {
+        if (!open) {
+            return;
+        }
+
+        outbound.replaceWith(Frames.encode(msg));
+        if (outbound.claimFlush()) {
+            startWriter();
+        }
+
+        term = true;
+        closeStream();
+    }
+
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    private void startWriter() {
+        if (session != null) {
+            session.flushRequested();
+        } else if (Settings.isVirtualTransport()) {
+            VirtualThreads.start(this::flush);
+        } else {
+            writers.execute(this::flush);
+        }
+    }
+
+    /*
+     * Drain the outbound queue, coalescing every frame taken in one batch into as few socket
+     * writes as the buffer allows, with one flush per batch
+     */
+    private void flush() {
+        if (writeBuffer == null) {
+            writeBuffer = new byte[WRITE_BUFFER_SIZE];
+        }
+
+        ByteBuffer[] batch;
+        try {
+            while ((batch = outbound.drain()) != null) {
+                int length = 0;
+
+                for (ByteBuffer frame : batch) {
+                    while (frame.hasRemaining()) {
+                        if (length == writeBuffer.length) {
+                            out.write(writeBuffer, 0, length);
+                            length = 0;
+                        }
+
+                        int chunk = Math.min(frame.remaining(), writeBuffer.length - length);
+                        frame.get(writeBuffer, length, chunk);
+                        length += chunk;
+                    }
+                }
+
+                out.write(writeBuffer, 0, length);
+                out.flush();
+            }
+        } catch (IOException e) {
+            log.error("connection " + Settings.socketAddress(socket) + " write failed: " + e);
+
+            outbound.abort();
+        }
+
+        if (!open && outbound.isIdle()) {
+            closeSocket();
+        }
+    }
+
+    /**
+     * Process a received line on the worker pool, after every line received before it. Lines of
+     * different connections are processed in parallel. A reader thread waits while MAX_BACKLOG
+     * lines are waiting; an IoLoop, which must not wait, stops reading the socket until half of
+     * them are processed.
+     *
+     * @param msg the line received, without its line terminator
+     * @return true if the caller should stop reading until the IoLoop is asked to read again
+     */
+    public boolean deliver(String msg) {
+        if (!heard) {
+            heard = true;
+        }
+
+        boolean permit;
+        if (session == null) {
+            backlog.acquireUninterruptibly();
+            permit = true;
+        } else {
+            permit = backlog.tryAcquire();
+            if (!permit) {
+                readPaused = true;
+            }
+        }
+
+        inbox.execute(() -> {
+            try {
+                if (!term && handleMsg(msg)) {
+                    term = true;
+                    closeStream();
+                }
+            } catch (RuntimeException e) {
+                log.error("failed to process a message from " + Settings.socketAddress(socket) + ": " + e, e);
+                term = true;
+                closeStream();
+            } finally {
+                if (permit) {
+                    backlog.release();
+                }
+                if (readPaused && backlog.availablePermits() >= MAX_BACKLOG / 2) {
+                    readPaused = false;
+                    session.resumeReading();
+                }
+            }
+        });
+
+        return !permit;
+    }
+
+    /*
+     * process the lines received from now on on the worker pool, after those received before
+     */
+    public void processOnWorkers() {
+        inbox.setPool(workers());
+    }
+
+    /*
+     * run a task after the lines received so far are processed, on the worker pool
+     */
+    protected void enqueue(Runnable task) {
+        inbox.execute(task);
+    }
+
+    boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /*
+     * whether a line was received since the last call
+     */
+    public boolean checkHeard() {
+        if (!heard) {
+            return false;
+        }
+        heard = false;
+
+        return true;
+    }
+
+    /**
+     * Process one incoming line. Return true if the connection should close.
+     *
+     * @param msg the line received, without its line terminator
+     * @return boolean
+     */
+    public boolean handleMsg(String msg) {
         return false;
     }
 
+    /*
+     * called by the IoLoop once the channel has been closed, by either party
+     */
+    protected void handleClosed() {
+        open = false;
+    }
+
     public void closeCon() {
         if (open) {
             log.info("closing connection " + Settings.socketAddress(socket));
 
             term = true;
+
+            if (session != null) {
+                session.closeAfterFlush();
+            }
         }
     }
 
+    /*
+     * close at once, dropping whatever is still queued: a peer which stopped answering may never
+     * take the queued frames, and a writer blocked on it is woken by the close
+     */
+    public void abort() {
+        term = true;
+
+        if (session != null) {
+            session.closeNow();
+            return;
+        }
+
+        open = false;
+        outbound.abort();
+        closeSocket();
+    }
+
     protected void closeStream() {
-        // Close streams and readers
-        try {
-            inreader.close();
-            in.close();
+        if (session != null) {
+            session.closeAfterFlush();
+            return;
+        }
+
+        open = false;
+        outbound.close();
 
-            outwriter.close();
-            out.close();
+        // a running writer closes the socket once it has drained the queue
+        if (outbound.isIdle()) {
+            closeSocket();
+        }
+    }
+
+    private void closeSocket() {
+        // Closing the socket closes its streams, and wakes a reader thread blocked on it
+        try {
+            socket.close();
         } catch (IOException e) {
             // already closed?
             log.error("received exception closing the connection " + Settings.socketAddress(socket) + ": " + e);
         }
-
-        open = false;
     }
 
     public void run() {
@@ -4,9 +4,16 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is a utility class which implement the connections from servers or clients
@@ -18,19 +25,28 @@ public class Control extends Thread {
     protected static final Logger log = LogManager.getLogger();
     protected static Control control;
     protected static Listener listener;
-    protected static boolean term = false;
-    private static ArrayList<Connection> connections;
+    protected static volatile boolean term = false;
+    // changed only when a connection opens or closes, iterated by the shutdown
+    private static List<Connection> connections;
+    // the timers of the server, the wheel runs on the control thread
+    private static final TimerWheel timers = new TimerWheel(10, TimeUnit.MILLISECONDS, 512);
+    // runs the activity, which syncs files and writes to every server, off the wheel's thread
+    private static final ExecutorService activityRunner = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "activity");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     protected Control() {
         // initialize the connections array
-        connections = new ArrayList<Connection>();
+        connections = new CopyOnWriteArrayList<>();
     }
 
     public boolean initiateConnection(int port, String host, boolean toLoadBalancer) {
         // make a connection to another server if remote hostname is supplied
         if (host != null) {
             try {
-                outgoingConnection(new Socket(host, port));
+                outgoingConnection(openSocket(host, port));
 
                 return true;
             } catch (UnknownHostException e) {
@@ -48,6 +64,26 @@ public class Control extends Thread {
         return false;
     }
 
+    /**
+     * Open a socket to another server, backed by a channel when the nio transport is used
+     *
+     * @param host host name
+     * @param port port number
+     * @return Socket the connected socket
+     */
+    protected Socket openSocket(String host, int port) throws IOException {
+        if (!Settings.isNioTransport()) {
+            return new Socket(host, port);
+        }
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+
+        return SocketChannel.open(address).socket();
+    }
+
     /**
      * Processing incoming messages from the Server.
      * Return true if the connection should close.
@@ -55,14 +91,14 @@ public class Control extends Thread {
      * @param msg
      * @return boolean
      */
-    public synchronized boolean process(Connection con, String msg) {
+    public boolean process(Connection con, String msg) {
         return true;
     }
 
     /*
      * The connection has been closed by the other party.
      */
-    public synchronized void connectionClosed(Connection con) {
+    public void connectionClosed(Connection con) {
         if (!term) {
             connections.remove(con);
         }
@@ -97,37 +133,70 @@ public class Control extends Thread {
     public void run() {
         log.info("using activity interval of " + Settings.getActivityInterval() + " milliseconds");
 
-        while (!term) {
-            // do something with 5 second intervals in between
-            try {
-                Thread.sleep(Settings.getActivityInterval());
-            } catch (InterruptedException e) {
-                log.info("received an interrupt, system is shutting down");
-
-                break;
-            }
-            if (!term) {
-                log.debug("doing activity");
-
-                term = doActivity();
-            }
-        }
+        timers.schedule(this::activity, Settings.getActivityInterval(), TimeUnit.MILLISECONDS);
+        // returns once the server shuts down, or the thread is interrupted
+        timers.run();
 
+        activityRunner.shutdown();
         log.info("closing " + connections.size() + " connections");
 
         // clean up
         for (Connection connection : connections) {
             connection.closeCon();
         }
+        IoLoop.shutdownAll();
 
         listener.setTerm(true);
     }
 
+    /*
+     * on the wheel's thread: hand the activity to its own thread, which schedules the next one
+     * when it is done, so a slow activity delays the next one instead of every other timer
+     */
+    private void activity() {
+        try {
+            activityRunner.execute(this::runActivity);
+        } catch (RejectedExecutionException e) {
+            log.debug("activity not run, the server is shutting down");
+        }
+    }
+
+    /*
+     * do the activity, then wait another interval for the next one
+     */
+    private void runActivity() {
+        if (!term) {
+            log.debug("doing activity");
+
+            try {
+                term = doActivity();
+            } catch (RuntimeException e) {
+                log.error("activity failed: " + e, e);
+            }
+        }
+
+        if (term) {
+            timers.stop();
+        } else {
+            timers.schedule(this::activity, Settings.getActivityInterval(), TimeUnit.MILLISECONDS);
+        }
+    }
+
     public boolean doActivity() {
         return false;
     }
 
+    /*
+     * the timers of the server: announces, timeouts, retries and deadlines
+     */
+    public static TimerWheel getTimers() {
+        return timers;
+    }
+
     public final void setTerm(boolean t) {
         term = t;
+        if (t) {
+            timers.stop();
+        }
     }
 }
@@ -0,0 +1,26 @@
+package activitystreamer.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of messages into wire frames. A frame is a read-only UTF-8 buffer holding one line,
+ * terminator included, so one encoded message can be shared by every connection it is sent to.
+ *
+ * @author Huanan Li
+ */
+public final class Frames {
+
+    private Frames() {
+    }
+
+    /**
+     * Encode a message once into a frame
+     *
+     * @param msg the message, without line terminator
+     * @return ByteBuffer a read-only frame
+     */
+    public static ByteBuffer encode(String msg) {
+        return ByteBuffer.wrap((msg + '\n').getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,47 @@
+package activitystreamer.util;
+
+/**
+ * Fast non-cryptographic 64 bit hashing of strings, for hash tables, hash trees and Bloom
+ * filters. Values are stable across servers and runs, so they can be compared between servers.
+ *
+ * @author Huanan Li
+ */
+public final class Hashes {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Hashes() {
+    }
+
+    /*
+     * 64 bit FNV-1a of the characters of a string, seeded so that differently seeded hashes of
+     * the same string are unrelated
+     */
+    public static long hash(long seed, String text) {
+        long h = (FNV_OFFSET ^ seed) * FNV_PRIME;
+
+        for (int i = 0; i < text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= FNV_PRIME;
+        }
+
+        // terminates the string, so a hash chained over several strings keeps them apart
+        h ^= 0xff;
+        h *= FNV_PRIME;
+
+        return h;
+    }
+
+    /*
+     * finalizer of MurmurHash3, spreads every input bit over the whole value
+     */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
@@ -0,0 +1,72 @@
+package activitystreamer.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A hybrid logical clock. A timestamp packs the wall clock in milliseconds into the high 48 bits
+ * and a counter into the low 16 bits, so timestamps compare as plain longs. Timestamps from
+ * now() always increase, stay close to the wall clock, and are later than every timestamp
+ * passed to update(), so an event stamped after a message was received sorts after the
+ * message's own stamp on every server. A received timestamp more than the maximum drift ahead of
+ * the wall clock here is not merged, so a server whose clock runs far ahead cannot drag every
+ * clock it reaches along with it.
+ *
+ * @author Huanan Li
+ */
+public class HybridClock {
+    private static final Logger log = LogManager.getLogger();
+    private static final int COUNTER_BITS = 16;
+
+    private final long maxDriftMillis;
+    private long last = 0;
+    private long rejected = 0;
+
+    /**
+     * @param maxDriftMillis how far ahead of the wall clock a received timestamp may be
+     */
+    public HybridClock(long maxDriftMillis) {
+        this.maxDriftMillis = maxDriftMillis;
+    }
+
+    /*
+     * a timestamp for an event happening here
+     */
+    public synchronized long now() {
+        last = Math.max(last + 1, System.currentTimeMillis() << COUNTER_BITS);
+
+        return last;
+    }
+
+    /*
+     * merge the timestamp of a received event, returns false if it was too far ahead to merge
+     */
+    public synchronized boolean update(long timestamp) {
+        long ahead = millis(timestamp) - System.currentTimeMillis();
+        if (ahead > maxDriftMillis) {
+            rejected++;
+            log.warn("timestamp " + ahead + " ms ahead of the wall clock not merged, more than the "
+                    + maxDriftMillis + " ms allowed; " + rejected + " rejected so far");
+
+            return false;
+        }
+
+        last = Math.max(last, timestamp);
+
+        return true;
+    }
+
+    /*
+     * the wall clock part of a timestamp, in milliseconds
+     */
+    public static long millis(long timestamp) {
+        return timestamp >>> COUNTER_BITS;
+    }
+
+    /*
+     * the smallest timestamp at a wall clock time in milliseconds
+     */
+    public static long lowest(long millis) {
+        return millis << COUNTER_BITS;
+    }
+}
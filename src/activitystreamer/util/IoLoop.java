@@ -0,0 +1,316 @@
+package activitystreamer.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector thread for the nio transport. Each loop owns the sockets registered with it, reads
+ * newline delimited messages from them and hands every complete line to the owning Connection.
+ * Writes from any thread go to the connection's OutboundQueue, which the loop drains with a
+ * gathering write once the socket is writable.
+ *
+ * @author Huanan Li
+ */
+public class IoLoop extends Thread {
+    private static final Logger log = LogManager.getLogger();
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static IoLoop[] loops;
+    private static final AtomicInteger nextLoop = new AtomicInteger();
+
+    private final Selector selector;
+    // registrations and interest changes requested by other threads
+    private final ConcurrentLinkedQueue<Session> pending = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean term = false;
+
+    private IoLoop(int index) throws IOException {
+        super("io-loop-" + index);
+        selector = Selector.open();
+    }
+
+    /**
+     * Pick the loop for a new connection, starting the loops on first use
+     *
+     * @return IoLoop the loop that should own the next socket
+     */
+    public static synchronized IoLoop next() throws IOException {
+        if (loops == null) {
+            IoLoop[] started = new IoLoop[Settings.getIoThreads()];
+            for (int i = 0; i < started.length; i++) {
+                started[i] = new IoLoop(i);
+                started[i].start();
+            }
+            loops = started;
+            log.info("started " + loops.length + " I/O threads");
+        }
+
+        return loops[Math.abs(nextLoop.getAndIncrement() % loops.length)];
+    }
+
+    public static synchronized void shutdownAll() {
+        if (loops != null) {
+            for (IoLoop loop : loops) {
+                loop.term = true;
+                loop.selector.wakeup();
+            }
+            loops = null;
+        }
+    }
+
+    /**
+     * Create the state this loop keeps for a connected channel, the channel is registered once
+     * the session is opened
+     *
+     * @param con the connection which owns the channel
+     * @return Session the state this loop keeps for the channel
+     */
+    Session newSession(Connection con, SocketChannel channel) {
+        return new Session(con, channel);
+    }
+
+    private void schedule(Session session) {
+        pending.add(session);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!term) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("selector failed, stopping " + getName() + ": " + e);
+                break;
+            }
+
+            Session session;
+            while ((session = pending.poll()) != null) {
+                session.updateInterest();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                session = (Session) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        session.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.flush();
+                    }
+                } catch (IOException e) {
+                    log.error("connection " + Settings.socketAddress(session.channel.socket())
+                            + " closed with exception: " + e);
+                    session.close();
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((Session) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("received exception closing the selector: " + e);
+        }
+    }
+
+    /**
+     * Per channel state, only touched by the owning loop except for the outbound queue
+     */
+    final class Session {
+        private final Connection con;
+        private final SocketChannel channel;
+        private final OutboundQueue outbound;
+        private SelectionKey key;
+        // frames drained from the queue that the socket has not fully taken yet
+        private ByteBuffer[] inFlight;
+        private int inFlightIndex;
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        // set by any thread, the channel closes once the outbound queue is empty
+        private volatile boolean closing = false;
+        // set by any thread, the channel closes at once and whatever is queued is dropped
+        private volatile boolean abandoned = false;
+        private boolean closed = false;
+
+        private Session(Connection con, SocketChannel channel) {
+            this.con = con;
+            this.channel = channel;
+            this.outbound = con.getOutbound();
+        }
+
+        void open() {
+            schedule(this);
+        }
+
+        /*
+         * called by the connection after it claimed the flush of its outbound queue
+         */
+        void flushRequested() {
+            schedule(this);
+        }
+
+        /*
+         * called by the connection once its backlog of received lines has gone down
+         */
+        void resumeReading() {
+            schedule(this);
+        }
+
+        void closeAfterFlush() {
+            closing = true;
+            outbound.close();
+            schedule(this);
+        }
+
+        void closeNow() {
+            abandoned = true;
+            schedule(this);
+        }
+
+        // runs on the loop thread
+        private void updateInterest() {
+            if (closed) {
+                return;
+            }
+            if (abandoned) {
+                close();
+                return;
+            }
+
+            try {
+                if (key == null) {
+                    channel.configureBlocking(false);
+                    key = channel.register(selector, SelectionKey.OP_READ, this);
+                }
+
+                if (inFlight != null || !outbound.isIdle()) {
+                    key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                } else if (closing) {
+                    close();
+                } else {
+                    key.interestOps(readInterest());
+                }
+            } catch (ClosedChannelException e) {
+                close();
+            } catch (IOException e) {
+                log.error("failed to register connection " + Settings.socketAddress(channel.socket()) + ": " + e);
+                close();
+            }
+        }
+
+        private int readInterest() {
+            return con.isReadPaused() ? 0 : SelectionKey.OP_READ;
+        }
+
+        private void read() throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+
+            if (n < 0) {
+                log.debug("connection closed to " + Settings.socketAddress(channel.socket()));
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            // the whole buffer is taken even once the backlog is full, the loop reuses it
+            boolean pause = false;
+            while (readBuffer.hasRemaining() && !closing) {
+                byte b = readBuffer.get();
+
+                if (b == '\n') {
+                    int length = lineLength;
+                    if (length > 0 && line[length - 1] == '\r') {
+                        length--;
+                    }
+                    lineLength = 0;
+
+                    pause |= con.deliver(new String(line, 0, length, StandardCharsets.UTF_8));
+                } else {
+                    if (lineLength == line.length) {
+                        byte[] grown = new byte[line.length * 2];
+                        System.arraycopy(line, 0, grown, 0, lineLength);
+                        line = grown;
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+
+            if (pause && key.isValid()) {
+                // a worker asks for the reads again once the backlog went down
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (!con.isReadPaused()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            while (true) {
+                if (inFlight == null) {
+                    inFlight = outbound.drain();
+                    inFlightIndex = 0;
+
+                    if (inFlight == null) {
+                        key.interestOps(readInterest());
+
+                        if (closing) {
+                            close();
+                        }
+                        return;
+                    }
+                }
+
+                channel.write(inFlight, inFlightIndex, inFlight.length - inFlightIndex);
+
+                while (inFlightIndex < inFlight.length && !inFlight[inFlightIndex].hasRemaining()) {
+                    inFlightIndex++;
+                }
+                if (inFlightIndex < inFlight.length) {
+                    // the socket buffer is full, wait for the next OP_WRITE
+                    return;
+                }
+                inFlight = null;
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closing = true;
+            inFlight = null;
+            outbound.abort();
+
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("received exception closing the connection " + Settings.socketAddress(channel.socket())
+                        + ": " + e);
+            }
+
+            con.handleClosed();
+        }
+    }
+}
@@ -4,7 +4,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * Listener main function from Skeleton Code
@@ -23,7 +25,13 @@ public class Listener extends Thread {
     protected Listener() throws IOException {
         portnum = Settings.getLocalPort();    // keep our own copy in case it
         // changes later
-        serverSocket = new ServerSocket(portnum);
+        if (Settings.isNioTransport()) {
+            // sockets accepted from a channel backed server socket can be handed to an IoLoop
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(portnum));
+        } else {
+            serverSocket = new ServerSocket(portnum);
+        }
 
         start();
     }
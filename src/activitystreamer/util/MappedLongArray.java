@@ -0,0 +1,99 @@
+package activitystreamer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A growable array of longs in a memory-mapped file, for indexes which grow with the stored data
+ * and so should not grow the heap with it. The file is mapped in chunks, so growing maps another
+ * chunk and leaves the ones already mapped alone, and the operating system pages the array in and
+ * out like the segments of a SegmentLog. The file is scratch space: it is emptied on open, its
+ * owner rebuilds the content, and it is deleted when the JVM exits. Elements never set are 0.
+ * <p>
+ * Writers need a lock of their own. A reader needs none for elements whose writes happened
+ * before it, such as elements written under a lock the reader has taken since.
+ *
+ * @author Huanan Li
+ */
+public class MappedLongArray {
+    // 8 MB chunks
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_LONGS = 1 << CHUNK_SHIFT;
+    private static final long CHUNK_BYTES = (long) CHUNK_LONGS * 8;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    // replaced by a longer copy when the array grows
+    private volatile LongBuffer[] chunks = new LongBuffer[0];
+
+    /**
+     * Open an empty array
+     *
+     * @param file the file of the array, emptied if it exists
+     */
+    public MappedLongArray(File file) throws IOException {
+        this.file = file;
+
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+    }
+
+    /*
+     * the element at an index, 0 if it was never set
+     */
+    public long get(long index) {
+        LongBuffer[] mapped = chunks;
+        int chunk = (int) (index >>> CHUNK_SHIFT);
+
+        return index < 0 || chunk >= mapped.length ? 0 : mapped[chunk].get((int) index & (CHUNK_LONGS - 1));
+    }
+
+    /**
+     * Set an element, growing the array to hold it
+     *
+     * @param index the index, 0 or more
+     * @param value the value
+     */
+    public void set(long index, long value) throws IOException {
+        int chunk = (int) (index >>> CHUNK_SHIFT);
+        LongBuffer[] mapped = chunks;
+
+        if (chunk >= mapped.length) {
+            mapped = grow(chunk + 1);
+        }
+        mapped[chunk].put((int) index & (CHUNK_LONGS - 1), value);
+    }
+
+    /*
+     * unmap what can be unmapped and delete the file, the array must not be used afterwards
+     */
+    public void delete() {
+        chunks = new LongBuffer[0];
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private LongBuffer[] grow(int count) throws IOException {
+        LongBuffer[] grown = Arrays.copyOf(chunks, count);
+
+        // the file is sparse, only the pages written take up disk
+        raf.setLength(count * CHUNK_BYTES);
+        for (int i = chunks.length; i < count; i++) {
+            grown[i] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, i * CHUNK_BYTES, CHUNK_BYTES).asLongBuffer();
+        }
+        chunks = grown;
+
+        return grown;
+    }
+}
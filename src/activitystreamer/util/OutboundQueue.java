@@ -0,0 +1,172 @@
+package activitystreamer.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded queue of encoded frames waiting to be written to one connection. Producers offer
+ * frames from any thread and claim the flush; the single writer that claimed it drains the
+ * queue in batches until it finds the queue empty. The queue is bounded both by the number of
+ * messages and by the number of bytes waiting.
+ *
+ * @author Huanan Li
+ */
+public class OutboundQueue {
+    public static final int QUEUED = 0;
+    public static final int DROPPED = 1;
+    public static final int DISCONNECT = 2;
+
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private final int maxMessages;
+    private final long maxBytes;
+    private long queuedBytes = 0;
+    private boolean flushing = false;
+    private boolean closed = false;
+
+    public OutboundQueue() {
+        this(Settings.getMaxQueuedMessages(), Settings.getMaxQueuedBytes());
+    }
+
+    public OutboundQueue(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /*
+     * returns false if the frame was not queued because the queue is full or closed
+     */
+    public synchronized boolean offer(ByteBuffer frame) {
+        if (closed || !hasRoomFor(frame.remaining())) {
+            return false;
+        }
+
+        add(frame);
+
+        return true;
+    }
+
+    /**
+     * Queue a frame, applying the slow consumer policy when the queue is over its limits
+     *
+     * @param frame  the frame to write
+     * @param policy what to do when there is no room for the frame
+     * @return QUEUED, DROPPED if the frame was discarded, or DISCONNECT if the connection should
+     * be closed
+     */
+    public synchronized int offer(ByteBuffer frame, SlowConsumerPolicy policy) {
+        if (closed) {
+            return DROPPED;
+        }
+        if (hasRoomFor(frame.remaining())) {
+            add(frame);
+
+            return QUEUED;
+        }
+
+        policy.fire();
+
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!frames.isEmpty() && !hasRoomFor(frame.remaining())) {
+                    queuedBytes -= frames.poll().remaining();
+                }
+                if (!hasRoomFor(frame.remaining())) {
+                    // larger than the whole byte budget
+                    return DROPPED;
+                }
+                add(frame);
+
+                return QUEUED;
+
+            case DISCONNECT:
+                return DISCONNECT;
+
+            default:
+                return DROPPED;
+        }
+    }
+
+    /**
+     * Discard everything queued, queue a last frame and stop accepting more
+     *
+     * @param frame the last frame for the connection
+     */
+    public synchronized void replaceWith(ByteBuffer frame) {
+        frames.clear();
+        queuedBytes = 0;
+        add(frame);
+        closed = true;
+    }
+
+    private boolean hasRoomFor(int length) {
+        return frames.size() < maxMessages && queuedBytes + length <= maxBytes;
+    }
+
+    private void add(ByteBuffer frame) {
+        frames.add(frame);
+        queuedBytes += frame.remaining();
+    }
+
+    /**
+     * Claim the right to flush. Only one writer drains the queue at a time.
+     *
+     * @return true if the caller must schedule a writer, false if one is already running
+     */
+    public synchronized boolean claimFlush() {
+        if (flushing || frames.isEmpty()) {
+            return false;
+        }
+        flushing = true;
+
+        return true;
+    }
+
+    /**
+     * Take every queued frame. Called only by the writer holding the flush claim, which is
+     * released when the queue is found empty.
+     *
+     * @return the queued frames, or null once the queue is empty and the claim released
+     */
+    public synchronized ByteBuffer[] drain() {
+        if (frames.isEmpty()) {
+            flushing = false;
+
+            return null;
+        }
+
+        ByteBuffer[] batch = frames.toArray(new ByteBuffer[frames.size()]);
+        frames.clear();
+        queuedBytes = 0;
+
+        return batch;
+    }
+
+    public synchronized boolean isIdle() {
+        return !flushing && frames.isEmpty();
+    }
+
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /*
+     * stop accepting frames, frames already queued are still drained
+     */
+    public synchronized void close() {
+        closed = true;
+    }
+
+    /*
+     * drop every queued frame and release the flush claim after a failed write
+     */
+    public synchronized void abort() {
+        closed = true;
+        flushing = false;
+        frames.clear();
+        queuedBytes = 0;
+    }
+}
@@ -0,0 +1,536 @@
+package activitystreamer.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records on disk, split into segment files which are memory-mapped for
+ * both writing and reading. Every record gets the next offset, starting at 0, and carries a
+ * stamp, such as a timestamp, besides its payload. A segment is created at full size and a new
+ * one is rolled once a record does not fit; the file name is the offset of its first record.
+ * <p>
+ * Each segment keeps a sparse index, an entry every INDEX_INTERVAL records, of the position of
+ * the record, the largest stamp of all records before it and the range of stamps in the block of
+ * records it starts. So finding an offset or the first record which may be stamped after some
+ * stamp costs a binary search and a short scan, even when stamps are not appended in order, and
+ * a scan skips whole blocks and segments whose stamps it does not want without reading them. On
+ * open the segments are scanned and the log continues after the last record whose checksum is
+ * intact.
+ *
+ * @author Huanan Li
+ */
+public class SegmentLog {
+    private static final Logger log = LogManager.getLogger();
+
+    // payload length, checksum of stamp and payload, stamp
+    private static final int HEADER_BYTES = 4 + 4 + 8;
+    private static final int INDEX_INTERVAL = 32;
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final boolean temporary;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private long nextOffset = 0;
+    private long maxStamp = Long.MIN_VALUE;
+    // keeps a second server from using the same directory
+    private FileLock directoryLock;
+
+    /**
+     * Open the log in a directory, recovering the records already there
+     *
+     * @param directory    the directory of the segment files, created if missing
+     * @param segmentBytes the size of a segment file
+     */
+    public SegmentLog(File directory, int segmentBytes) throws IOException {
+        this(directory, segmentBytes, false);
+    }
+
+    private SegmentLog(File directory, int segmentBytes, boolean temporary) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.temporary = temporary;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory " + directory);
+        }
+
+        File lockFile = new File(directory, "lock");
+        if (temporary) {
+            lockFile.deleteOnExit();
+        }
+        directoryLock = new RandomAccessFile(lockFile, "rw").getChannel().tryLock();
+        if (directoryLock == null) {
+            throw new IOException(directory + " is in use by another process");
+        }
+
+        recover();
+    }
+
+    /**
+     * A log in a new temporary directory, deleted when the JVM exits
+     *
+     * @param segmentBytes the size of a segment file
+     * @return SegmentLog the empty log
+     */
+    public static SegmentLog temporary(int segmentBytes) throws IOException {
+        File directory = Files.createTempDirectory("activitystreamer-").toFile();
+        directory.deleteOnExit();
+
+        return new SegmentLog(directory, segmentBytes, true);
+    }
+
+    /**
+     * Append a record
+     *
+     * @param stamp   the stamp of the record
+     * @param payload the content of the record
+     * @return long the offset of the record
+     */
+    public synchronized long append(long stamp, byte[] payload) throws IOException {
+        int length = HEADER_BYTES + payload.length;
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+        if (segment == null || segment.size + length > segment.map.capacity()) {
+            segment = roll(Math.max(segmentBytes, length));
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer stampBytes = ByteBuffer.allocate(8).putLong(0, stamp);
+        crc.update(stampBytes.array());
+        crc.update(payload);
+
+        ByteBuffer out = segment.map.duplicate();
+        out.position(segment.size);
+        out.putInt(payload.length);
+        out.putInt((int) crc.getValue());
+        out.putLong(stamp);
+        out.put(payload);
+
+        segment.added(length, stamp, maxStamp);
+        maxStamp = Math.max(maxStamp, stamp);
+
+        return nextOffset++;
+    }
+
+    /**
+     * Read a record
+     *
+     * @param offset the offset of the record
+     * @return Record the record, or null if there is none at the offset
+     */
+    public synchronized Record read(long offset) {
+        List<Record> records = read(offset, 1);
+
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * Read consecutive records
+     *
+     * @param fromOffset the offset of the first record
+     * @param max        the most records to read
+     * @return the records, fewer than max at the end of the log
+     */
+    public synchronized List<Record> read(long fromOffset, int max) {
+        ArrayList<Record> records = new ArrayList<>();
+        int s = segmentOf(Math.max(0, fromOffset));
+        long offset = Math.max(0, fromOffset);
+
+        while (s >= 0 && s < segments.size() && records.size() < max) {
+            Segment segment = segments.get(s);
+
+            if (offset < segment.baseOffset + segment.count) {
+                ByteBuffer in = segment.map.duplicate();
+                in.position(segment.positionOf(offset));
+
+                while (offset < segment.baseOffset + segment.count && records.size() < max) {
+                    int length = in.getInt();
+                    in.getInt();
+                    long stamp = in.getLong();
+
+                    records.add(new Record(offset++, stamp, slice(segment.map, in.position(), length)));
+                    in.position(in.position() + length);
+                }
+            }
+
+            s++;
+            offset = Math.max(offset, s < segments.size() ? segments.get(s).baseOffset : offset);
+        }
+
+        return records;
+    }
+
+    /**
+     * Visit the records from an offset on, in offset order. The stamps of a block or segment are
+     * checked before any of its records are read, and the stamp of a record before it is handed
+     * out. Records are views of the mapped segments, nothing is copied onto the heap. The log is only locked while the state of each segment is taken, so appends go
+     * on while a scan runs; records appended meanwhile may or may not be visited.
+     *
+     * @param fromOffset the offset of the first record to visit
+     * @param visitor    decides which records to read and takes them
+     */
+    public void scan(long fromOffset, Visitor visitor) {
+        long offset = Math.max(0, fromOffset);
+
+        for (int s = firstSegment(offset); ; s++) {
+            Segment segment;
+            int count;
+            int indexSize;
+            int[] positions;
+            long[] blockMin;
+            long[] blockMax;
+            long segmentMin;
+            long segmentMax;
+            synchronized (this) {
+                if (s >= segments.size()) {
+                    return;
+                }
+                segment = segments.get(s);
+                count = segment.count;
+                indexSize = segment.indexSize;
+                positions = segment.indexPositions;
+                blockMin = segment.blockMinStamps;
+                blockMax = segment.blockMaxStamps;
+                segmentMin = segment.minStamp;
+                segmentMax = segment.maxStamp;
+            }
+
+            offset = Math.max(offset, segment.baseOffset);
+            if (count == 0 || offset >= segment.baseOffset + count || !visitor.mayWant(segmentMin, segmentMax)) {
+                continue;
+            }
+
+            ByteBuffer in = segment.map;
+            int first = (int) (offset - segment.baseOffset);
+            for (int block = first / INDEX_INTERVAL; block < indexSize; block++) {
+                int from = Math.max(first, block * INDEX_INTERVAL);
+                int to = Math.min(count, (block + 1) * INDEX_INTERVAL);
+                if (from >= to || !visitor.mayWant(blockMin[block], blockMax[block])) {
+                    continue;
+                }
+
+                int position = positions[block];
+                for (int record = block * INDEX_INTERVAL; record < to; record++) {
+                    int length = in.getInt(position);
+                    if (record >= from) {
+                        long stamp = in.getLong(position + 8);
+                        if (visitor.wants(stamp)) {
+                            visitor.accept(new Record(segment.baseOffset + record, stamp,
+                                    slice(segment.map, position + HEADER_BYTES, length)));
+                        }
+                    }
+                    position += HEADER_BYTES + length;
+                }
+            }
+            offset = segment.baseOffset + count;
+        }
+    }
+
+    private synchronized int firstSegment(long offset) {
+        return Math.max(0, segmentOf(offset));
+    }
+
+    /**
+     * Find where to start reading for the records stamped after a stamp. Every record before the
+     * returned offset has a stamp no larger than the given one.
+     *
+     * @param stamp the stamp
+     * @return long the offset to read from
+     */
+    public synchronized long seek(long stamp) {
+        // the last segment whose first record only has records with smaller stamps before it
+        int low = 0;
+        int high = segments.size() - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = segments.get(mid);
+
+            if (segment.indexSize > 0 && segment.indexMaxStamps[0] <= stamp) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return segments.isEmpty() ? 0 : segments.get(found).seek(stamp);
+    }
+
+    /*
+     * the offset the next record will get
+     */
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    /*
+     * write the records appended so far through to the disk
+     */
+    public synchronized void flush() {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).map.force();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /*
+     * the index of the segment holding an offset, -1 if there is none
+     */
+    private int segmentOf(long offset) {
+        int low = 0;
+        int high = segments.size() - 1;
+        int found = -1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+
+            if (segments.get(mid).baseOffset <= offset) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return found;
+    }
+
+    /*
+     * a read-only view of part of a segment, the payload of a record without copying it
+     */
+    private static ByteBuffer slice(ByteBuffer map, int position, int length) {
+        ByteBuffer view = map.duplicate();
+        view.limit(position + length).position(position);
+
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    private Segment roll(int capacity) throws IOException {
+        if (!segments.isEmpty()) {
+            // the finished segment will not change any more
+            segments.get(segments.size() - 1).map.force();
+        }
+
+        File file = new File(directory, String.format("%020d", nextOffset) + SUFFIX);
+        Segment segment = new Segment(nextOffset, file, capacity);
+        segments.add(segment);
+
+        log.debug("rolled segment " + file);
+
+        return segment;
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            long baseOffset = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            if (baseOffset != nextOffset) {
+                log.warn("segment " + file + " does not follow offset " + nextOffset + ", ignoring the rest of the log");
+                break;
+            }
+
+            Segment segment = new Segment(baseOffset, file, (int) Math.max(file.length(), segmentBytes));
+            segments.add(segment);
+            ByteBuffer in = segment.map.duplicate();
+
+            while (in.remaining() >= HEADER_BYTES) {
+                int start = in.position();
+                int length = in.getInt();
+                int checksum = in.getInt();
+                long stamp = in.getLong();
+                if (length < 0 || length > in.remaining()) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(ByteBuffer.allocate(8).putLong(0, stamp).array());
+                crc.update(slice(segment.map, in.position(), length));
+                in.position(in.position() + length);
+                if ((int) crc.getValue() != checksum) {
+                    // end of the written part, or a record torn by a crash
+                    in.position(start);
+                    break;
+                }
+
+                segment.added(in.position() - start, stamp, maxStamp);
+                maxStamp = Math.max(maxStamp, stamp);
+                nextOffset++;
+            }
+
+            if (segment.size + HEADER_BYTES < segment.map.capacity() && file != files[files.length - 1]) {
+                log.warn("segment " + file + " ends early at record " + nextOffset);
+            }
+        }
+
+        if (temporary) {
+            for (Segment segment : segments) {
+                segment.file.deleteOnExit();
+            }
+        }
+
+        log.info("recovered " + nextOffset + " records from " + segments.size() + " segments in " + directory);
+    }
+
+    /*
+     * one segment file, mapped at its full size
+     */
+    private class Segment {
+        private final long baseOffset;
+        private final File file;
+        private final MappedByteBuffer map;
+        // bytes and records written
+        private int size = 0;
+        private int count = 0;
+        // sparse index: position of every INDEX_INTERVAL-th record and the largest stamp before it,
+        // and the smallest and largest stamp of the block of records it starts
+        private int[] indexPositions = new int[16];
+        private long[] indexMaxStamps = new long[16];
+        private long[] blockMinStamps = new long[16];
+        private long[] blockMaxStamps = new long[16];
+        private int indexSize = 0;
+        private long minStamp = Long.MAX_VALUE;
+        private long maxStamp = Long.MIN_VALUE;
+
+        private Segment(long baseOffset, File file, int capacity) throws IOException {
+            this.baseOffset = baseOffset;
+            this.file = file;
+
+            if (temporary) {
+                file.deleteOnExit();
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < capacity) {
+                    raf.setLength(capacity);
+                }
+                // the mapping stays valid after the channel is closed
+                map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+
+        private void added(int length, long stamp, long maxStampBefore) {
+            if (count % INDEX_INTERVAL == 0) {
+                if (indexSize == indexPositions.length) {
+                    indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                    indexMaxStamps = Arrays.copyOf(indexMaxStamps, indexSize * 2);
+                    blockMinStamps = Arrays.copyOf(blockMinStamps, indexSize * 2);
+                    blockMaxStamps = Arrays.copyOf(blockMaxStamps, indexSize * 2);
+                }
+                indexPositions[indexSize] = size;
+                indexMaxStamps[indexSize] = maxStampBefore;
+                blockMinStamps[indexSize] = stamp;
+                blockMaxStamps[indexSize] = stamp;
+                indexSize++;
+            } else {
+                blockMinStamps[indexSize - 1] = Math.min(blockMinStamps[indexSize - 1], stamp);
+                blockMaxStamps[indexSize - 1] = Math.max(blockMaxStamps[indexSize - 1], stamp);
+            }
+            minStamp = Math.min(minStamp, stamp);
+            maxStamp = Math.max(maxStamp, stamp);
+
+            size += length;
+            count++;
+        }
+
+        private int positionOf(long offset) {
+            int record = (int) (offset - baseOffset);
+            int position = indexPositions[record / INDEX_INTERVAL];
+
+            for (int i = record - record % INDEX_INTERVAL; i < record; i++) {
+                position += HEADER_BYTES + map.getInt(position);
+            }
+
+            return position;
+        }
+
+        private long seek(long stamp) {
+            int low = 0;
+            int high = indexSize - 1;
+            int found = 0;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+
+                if (indexMaxStamps[mid] <= stamp) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            return baseOffset + (long) found * INDEX_INTERVAL;
+        }
+    }
+
+    /*
+     * what a scan reads
+     */
+    public interface Visitor {
+        /*
+         * whether a record stamped from min to max, both included, may be wanted; a block or
+         * segment of records whose stamps are all outside is skipped
+         */
+        boolean mayWant(long min, long max);
+
+        /*
+         * whether a record with the stamp is wanted, asked before its payload is read
+         */
+        boolean wants(long stamp);
+
+        void accept(Record record);
+    }
+
+    /**
+     * A record, its payload a view of the mapped segment which stays valid as long as the log
+     */
+    public static class Record {
+        private final long offset;
+        private final long stamp;
+        private final ByteBuffer payload;
+
+        private Record(long offset, long stamp, ByteBuffer payload) {
+            this.offset = offset;
+            this.stamp = stamp;
+            this.payload = payload;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getStamp() {
+            return stamp;
+        }
+
+        /*
+         * the payload from position 0 to the limit, read-only
+         */
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+    }
+}
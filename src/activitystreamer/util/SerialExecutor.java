@@ -0,0 +1,75 @@
+package activitystreamer.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on a shared pool. At most one
+ * task of the executor is on the pool at any time, so tasks need no locking among themselves,
+ * while the tasks of different executors run in parallel. After a batch of tasks the worker is
+ * handed back to the pool, so one busy executor cannot starve the others.
+ *
+ * @author Huanan Li
+ */
+public class SerialExecutor implements Executor {
+    private static final Logger log = LogManager.getLogger();
+
+    // tasks run before the worker goes back to the pool
+    private static final int BATCH = 64;
+
+    private volatile Executor pool;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // set while a drain is on the pool or running
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    /*
+     * run the tasks from now on on another pool, still one at a time and in order
+     */
+    public void setPool(Executor pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            pool.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            for (int i = 0; i < BATCH; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("task failed: " + e, e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+
+            // a task added after the last poll, or left over from the batch
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -14,6 +14,9 @@ import java.security.SecureRandom;
  * @author Dr. Aaron Harwood
  */
 public class Settings {
+    public static final String TRANSPORT_THREAD = "thread";
+    public static final String TRANSPORT_NIO = "nio";
+    public static final String TRANSPORT_VIRTUAL = "virtual";
     private static final Logger log = LogManager.getLogger();
     private static SecureRandom random = new SecureRandom();
     private static int localPort = 3780;
@@ -23,6 +26,36 @@ public class Settings {
     private static int activityInterval = 5000; // milliseconds
     private static String secret = null;
     private static String username = "anonymous";
+    // "thread" runs a reader thread per connection, "virtual" runs it on a virtual thread,
+    // "nio" hands sockets to a few selector loops
+    private static String transport = TRANSPORT_THREAD;
+    private static int ioThreads = Runtime.getRuntime().availableProcessors();
+    // threads processing the received messages, those of one connection one after another
+    private static int workerThreads = Runtime.getRuntime().availableProcessors();
+    // shards processing the incoming connections and fanning activities out to their clients, 0 for none
+    private static int shards = 0;
+    // limits of each connection's outbound queue, and what a broadcast does beyond them
+    private static int maxQueuedMessages = 1024;
+    private static long maxQueuedBytes = 8 * 1024 * 1024;
+    private static SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_NEWEST;
+    // number of random peers each activity is gossiped to, 0 floods every peer
+    private static int gossipFanout = 0;
+    // where the server keeps its activity history, null keeps it for one run only
+    private static String dataDirectory = null;
+    // bounds of the recent activities kept in the heap, the rest are read from disk
+    private static int cacheActivities = 1024;
+    private static long cacheBytes = 4 * 1024 * 1024;
+    private static long cacheAgeMillis = 0;
+    // bound of the full-text search index, the oldest activities drop out of it beyond
+    private static long searchIndexBytes = 16 * 1024 * 1024;
+    // a connection silent for a heartbeat interval is sent a heartbeat, and closed once silent for
+    // the idle timeout; an interval of 0 keeps connections open however long they are silent
+    private static long heartbeatMillis = 10 * 1000;
+    private static long idleTimeoutMillis = 30 * 1000;
+    // clients of older versions are not sent heartbeats, so they are closed after a longer silence
+    private static long legacyIdleTimeoutMillis = 10 * 60 * 1000;
+    // a received timestamp further ahead of the wall clock is not merged into the hybrid clock
+    private static long maxClockDriftMillis = 60 * 1000;
 
     public static int getLocalPort() {
         return localPort;
@@ -88,6 +121,224 @@ public class Settings {
         Settings.localHostname = localHostname;
     }
 
+    public static String getTransport() {
+        return transport;
+    }
+
+    public static void setTransport(String transport) {
+        if (!TRANSPORT_THREAD.equals(transport) && !TRANSPORT_NIO.equals(transport)
+                && !TRANSPORT_VIRTUAL.equals(transport)) {
+            log.error("supplied transport " + transport + " is unknown, using " + getTransport());
+        } else if (TRANSPORT_VIRTUAL.equals(transport) && !VirtualThreads.isSupported()) {
+            log.error("virtual threads need Java 21 or later, using " + getTransport());
+        } else {
+            Settings.transport = transport;
+        }
+    }
+
+    public static boolean isNioTransport() {
+        return TRANSPORT_NIO.equals(transport);
+    }
+
+    public static boolean isVirtualTransport() {
+        return TRANSPORT_VIRTUAL.equals(transport);
+    }
+
+    public static int getIoThreads() {
+        return ioThreads;
+    }
+
+    public static void setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            log.error("supplied number of I/O threads " + ioThreads + " is out of range, using " + getIoThreads());
+        } else {
+            Settings.ioThreads = ioThreads;
+        }
+    }
+
+    public static int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public static void setWorkerThreads(int workerThreads) {
+        if (workerThreads < 1) {
+            log.error("supplied number of worker threads " + workerThreads + " is out of range, using "
+                    + getWorkerThreads());
+        } else {
+            Settings.workerThreads = workerThreads;
+        }
+    }
+
+    public static int getShards() {
+        return shards;
+    }
+
+    public static void setShards(int shards) {
+        if (shards < 0) {
+            log.error("supplied number of shards " + shards + " is out of range, using " + getShards());
+        } else {
+            Settings.shards = shards;
+        }
+    }
+
+    public static int getMaxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    public static void setMaxQueuedMessages(int maxQueuedMessages) {
+        if (maxQueuedMessages < 1) {
+            log.error("supplied queue limit " + maxQueuedMessages + " is out of range, using " + getMaxQueuedMessages());
+        } else {
+            Settings.maxQueuedMessages = maxQueuedMessages;
+        }
+    }
+
+    public static long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public static void setMaxQueuedBytes(long maxQueuedBytes) {
+        if (maxQueuedBytes < 1) {
+            log.error("supplied queue limit " + maxQueuedBytes + " bytes is out of range, using " + getMaxQueuedBytes());
+        } else {
+            Settings.maxQueuedBytes = maxQueuedBytes;
+        }
+    }
+
+    public static SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public static void setSlowConsumerPolicy(String option) {
+        SlowConsumerPolicy policy = SlowConsumerPolicy.fromOption(option);
+
+        if (policy == null) {
+            log.error("supplied slow consumer policy " + option + " is unknown, using " + slowConsumerPolicy.getOption());
+        } else {
+            Settings.slowConsumerPolicy = policy;
+        }
+    }
+
+    public static int getGossipFanout() {
+        return gossipFanout;
+    }
+
+    public static void setGossipFanout(int gossipFanout) {
+        if (gossipFanout < 0) {
+            log.error("supplied gossip fanout " + gossipFanout + " is out of range, using " + getGossipFanout());
+        } else {
+            Settings.gossipFanout = gossipFanout;
+        }
+    }
+
+    public static boolean isGossip() {
+        return gossipFanout > 0;
+    }
+
+    public static String getDataDirectory() {
+        return dataDirectory;
+    }
+
+    public static void setDataDirectory(String dataDirectory) {
+        Settings.dataDirectory = dataDirectory;
+    }
+
+    public static int getCacheActivities() {
+        return cacheActivities;
+    }
+
+    public static void setCacheActivities(int cacheActivities) {
+        if (cacheActivities < 0) {
+            log.error("supplied cache size " + cacheActivities + " is out of range, using " + getCacheActivities());
+        } else {
+            Settings.cacheActivities = cacheActivities;
+        }
+    }
+
+    public static long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public static void setCacheBytes(long cacheBytes) {
+        if (cacheBytes < 0) {
+            log.error("supplied cache bytes " + cacheBytes + " is out of range, using " + getCacheBytes());
+        } else {
+            Settings.cacheBytes = cacheBytes;
+        }
+    }
+
+    public static long getSearchIndexBytes() {
+        return searchIndexBytes;
+    }
+
+    public static void setSearchIndexBytes(long searchIndexBytes) {
+        if (searchIndexBytes < 0) {
+            log.error("supplied search index bytes " + searchIndexBytes + " is out of range, using " + getSearchIndexBytes());
+        } else {
+            Settings.searchIndexBytes = searchIndexBytes;
+        }
+    }
+
+    public static long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    public static void setHeartbeatMillis(long heartbeatMillis) {
+        if (heartbeatMillis < 0) {
+            log.error("supplied heartbeat interval " + heartbeatMillis + " is out of range, using " + getHeartbeatMillis());
+        } else {
+            Settings.heartbeatMillis = heartbeatMillis;
+        }
+    }
+
+    public static long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public static void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0) {
+            log.error("supplied idle timeout " + idleTimeoutMillis + " is out of range, using " + getIdleTimeoutMillis());
+        } else {
+            Settings.idleTimeoutMillis = idleTimeoutMillis;
+        }
+    }
+
+    public static long getLegacyIdleTimeoutMillis() {
+        return legacyIdleTimeoutMillis;
+    }
+
+    public static void setLegacyIdleTimeoutMillis(long legacyIdleTimeoutMillis) {
+        if (legacyIdleTimeoutMillis <= 0) {
+            log.error("supplied legacy idle timeout " + legacyIdleTimeoutMillis + " is out of range, using " + getLegacyIdleTimeoutMillis());
+        } else {
+            Settings.legacyIdleTimeoutMillis = legacyIdleTimeoutMillis;
+        }
+    }
+
+    public static long getMaxClockDriftMillis() {
+        return maxClockDriftMillis;
+    }
+
+    public static void setMaxClockDriftMillis(long maxClockDriftMillis) {
+        if (maxClockDriftMillis <= 0) {
+            log.error("supplied maximum clock drift " + maxClockDriftMillis + " is out of range, using " + getMaxClockDriftMillis());
+        } else {
+            Settings.maxClockDriftMillis = maxClockDriftMillis;
+        }
+    }
+
+    public static long getCacheAgeMillis() {
+        return cacheAgeMillis;
+    }
+
+    public static void setCacheAgeMillis(long cacheAgeMillis) {
+        if (cacheAgeMillis < 0) {
+            log.error("supplied cache age " + cacheAgeMillis + " is out of range, using " + getCacheAgeMillis());
+        } else {
+            Settings.cacheAgeMillis = cacheAgeMillis;
+        }
+    }
+
     /*
      * some general helper functions
      */
@@ -0,0 +1,53 @@
+package activitystreamer.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What a fan-out does when a connection's outbound queue is over its limits, with a counter of
+ * how often each policy fired
+ *
+ * @author Huanan Li
+ */
+public enum SlowConsumerPolicy {
+    // discard the oldest queued messages to make room for the new one
+    DROP_OLDEST("drop-oldest"),
+    // discard the new message
+    DROP_NEWEST("drop-newest"),
+    // redirect the client elsewhere and close the connection
+    DISCONNECT("disconnect");
+
+    private final String option;
+    private final AtomicLong fired = new AtomicLong();
+
+    SlowConsumerPolicy(String option) {
+        this.option = option;
+    }
+
+    /**
+     * Find the policy for a command line value
+     *
+     * @param option the value, e.g. drop-oldest
+     * @return SlowConsumerPolicy the policy, or null if the value is unknown
+     */
+    public static SlowConsumerPolicy fromOption(String option) {
+        for (SlowConsumerPolicy policy : values()) {
+            if (policy.option.equals(option)) {
+                return policy;
+            }
+        }
+
+        return null;
+    }
+
+    public String getOption() {
+        return option;
+    }
+
+    public long getFired() {
+        return fired.get();
+    }
+
+    void fire() {
+        fired.incrementAndGet();
+    }
+}
@@ -0,0 +1,83 @@
+package activitystreamer.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue for exactly one producer thread and one consumer thread, without locks. The
+ * producer only writes the tail and the consumer only writes the head, each keeping the last
+ * value it read of the other's counter so it rarely has to read it again.
+ *
+ * @author Huanan Li
+ */
+public class SpscQueue<E> {
+    private final Object[] buffer;
+    private final int mask;
+    // the next element to take, written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // the next free slot, written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    // the producer's last read of head, and the consumer's last read of tail
+    private long headCache = 0;
+    private long tailCache = 0;
+
+    /**
+     * @param capacity the most elements queued, rounded up to a power of two
+     */
+    public SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element, only called by the producer
+     *
+     * @param element the element
+     * @return false if the queue is full
+     */
+    public boolean offer(E element) {
+        long t = tail.get();
+
+        if (t - headCache >= buffer.length) {
+            headCache = head.get();
+            if (t - headCache >= buffer.length) {
+                return false;
+            }
+        }
+
+        buffer[(int) t & mask] = element;
+        // a volatile write, so a consumer about to sleep either sees the element or is woken
+        tail.set(t + 1);
+
+        return true;
+    }
+
+    /**
+     * Take the oldest element, only called by the consumer
+     *
+     * @return the element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+
+        if (h >= tailCache) {
+            tailCache = tail.get();
+            if (h >= tailCache) {
+                return null;
+            }
+        }
+
+        int index = (int) h & mask;
+        E element = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+
+        return element;
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+}
@@ -0,0 +1,250 @@
+package activitystreamer.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: a ring of buckets, one per tick, each a list of the timers expiring
+ * when the wheel passes it, with timers further away than a turn counting down the turns left.
+ * Any thread schedules or cancels a timer in constant time by queueing it; the thread running
+ * the wheel moves the queued timers into and out of their buckets once a tick, and runs the
+ * ones expiring on it. Timers fire up to a tick late, and run on the wheel's thread, so they
+ * should be short and hand anything longer to an executor.
+ *
+ * @author Huanan Li
+ */
+public class TimerWheel implements Runnable {
+    private static final Logger log = LogManager.getLogger();
+
+    // timers moved into buckets per tick, so a flood of new ones cannot stall the wheel
+    private static final int MAX_TRANSFERS = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    // ticks the wheel has passed, only touched by its thread
+    private long tick = 0;
+    private volatile Thread thread;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param tickDuration how long a tick is, the precision of the timers
+     * @param unit         the unit of tickDuration
+     * @param ticks        buckets in the wheel, rounded up to a power of two
+     */
+    public TimerWheel(long tickDuration, TimeUnit unit, int ticks) {
+        int size = Integer.highestOneBit(Math.max(2, ticks) - 1) << 1;
+
+        tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        wheel = new Bucket[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Run a task once, after a delay
+     *
+     * @param task  the task, run on the wheel's thread
+     * @param delay the delay
+     * @param unit  the unit of delay
+     * @return the timer, to cancel it
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - start + Math.max(0, unit.toNanos(delay)));
+
+        if (stopped) {
+            timeout.state.set(Timeout.CANCELLED);
+        } else {
+            scheduled.add(timeout);
+        }
+
+        return timeout;
+    }
+
+    /*
+     * run the wheel on the calling thread until stop is called or the thread is interrupted
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+
+        while (!stopped) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep;
+            while (!stopped && (sleep = deadline - (System.nanoTime() - start)) > 0) {
+                LockSupport.parkNanos(this, sleep);
+                if (Thread.interrupted()) {
+                    log.info("timer wheel interrupted");
+                    stopped = true;
+                }
+            }
+            if (stopped) {
+                break;
+            }
+
+            removeCancelled();
+            transferScheduled();
+            wheel[(int) tick & mask].expire(deadline);
+            tick++;
+        }
+
+        thread = null;
+    }
+
+    /*
+     * stop running the wheel, the timers not run by now never are
+     */
+    public void stop() {
+        stopped = true;
+
+        Thread running = thread;
+        if (running != null) {
+            LockSupport.unpark(running);
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        for (int i = 0; i < MAX_TRANSFERS && (timeout = scheduled.poll()) != null; i++) {
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+
+            // a timer already due goes in the bucket expiring now
+            long due = Math.max(tick, timeout.deadline / tickNanos);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int) due & mask].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * A scheduled task, which can be cancelled until it runs
+     */
+    public class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        // nanoseconds from the start of the wheel
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // turns of the wheel left, and the bucket the timer is in, only touched by the wheel's thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timer
+         *
+         * @return false if it ran or was cancelled already
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+
+            // a timer still queued for its bucket is dropped when it is taken from the queue
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /*
+     * the timers of one tick, a doubly linked list so a cancelled one is unlinked at once
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        /*
+         * run the timers due by the deadline, and count down the turns of the others
+         */
+        private void expire(long deadline) {
+            Timeout timeout = head;
+
+            while (timeout != null) {
+                Timeout next = timeout.next;
+
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else if (timeout.deadline <= deadline) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (RuntimeException e) {
+                            log.error("timer task failed: " + e, e);
+                        }
+                    }
+                }
+
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package activitystreamer.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the transports of Connection on one machine: every client sends lines which the
+ * server side echoes back through its outbound queue, and the benchmark reports the lines
+ * round-tripped per second, with the platform threads and heap in use while the connections
+ * are open. The server side runs the read loop of a ServerConnection, so the thread model is
+ * the one the server uses; the clients are plain sockets, the same for every transport.
+ * <p>
+ * Run it with the classes and lib/* on the class path:
+ * <pre>
+ * java activitystreamer.util.TransportBenchmark [connections] [lines per connection] [transport...]
+ * </pre>
+ * The transports default to thread and virtual. Virtual threads need Java 21; on older JVMs
+ * the virtual run is skipped. Each transport gets a warm-up round which is not reported.
+ *
+ * @author Huanan Li
+ */
+public class TransportBenchmark {
+    // an activity broadcast of typical size
+    private static final String LINE = "{\"id\":\"k2m9q1x7.1\",\"time\":1792215406838,\"hlc\":117454628902535168,"
+            + "\"activity\":{\"object\":\"a line of some length to stand for an activity\","
+            + "\"authenticated_user\":\"bob\"},\"command\":\"ACTIVITY_BROADCAST\"}";
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        String[] transports = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length)
+                : new String[]{Settings.TRANSPORT_THREAD, Settings.TRANSPORT_VIRTUAL};
+
+        // the queues must hold what one client has in flight
+        Settings.setMaxQueuedMessages(Math.max(Settings.getMaxQueuedMessages(), lines));
+
+        System.out.println(connections + " connections, " + lines + " lines each, "
+                + (LINE.length() + 1) + " bytes a line");
+        for (String transport : transports) {
+            if (Settings.TRANSPORT_VIRTUAL.equals(transport) && !VirtualThreads.isSupported()) {
+                System.out.println(transport + ": skipped, virtual threads need Java 21 or later");
+                continue;
+            }
+            Settings.setTransport(transport);
+
+            run(connections, Math.max(1, lines / 10));
+            Result result = run(connections, lines);
+            System.out.printf("%-8s %,12.0f lines/s %8d threads %,10d KB heap%n", transport,
+                    result.linesPerSecond, result.threads, result.heapBytes / 1024);
+        }
+
+        IoLoop.shutdownAll();
+        System.exit(0);
+    }
+
+    private static Result run(int connections, int lines) throws Exception {
+        // accepted the way Listener accepts, so each transport gets the sockets it expects
+        ServerSocket listener = Settings.isNioTransport() ? ServerSocketChannel.open().socket() : new ServerSocket();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        ArrayList<Socket> clients = new ArrayList<>();
+        ArrayList<Connection> accepted = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            clients.add(new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort()));
+            accepted.add(new EchoConnection(listener.accept()));
+        }
+
+        Result result = new Result();
+        System.gc();
+        result.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        result.heapBytes = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+
+        // one thread writes and one reads each client, the same for every transport
+        ExecutorService drivers = Executors.newFixedThreadPool(2 * connections);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicLong echoed = new AtomicLong();
+        ArrayList<Future<?>> done = new ArrayList<>();
+        byte[] line = (LINE + '\n').getBytes(StandardCharsets.UTF_8);
+
+        for (Socket client : clients) {
+            done.add(drivers.submit(() -> {
+                start.await();
+                OutputStream out = client.getOutputStream();
+                for (int i = 0; i < lines; i++) {
+                    out.write(line);
+                }
+                out.flush();
+                return null;
+            }));
+            done.add(drivers.submit(() -> {
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                for (int i = 0; i < lines && in.readLine() != null; i++) {
+                    echoed.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        for (Future<?> f : done) {
+            f.get();
+        }
+        long elapsed = System.nanoTime() - began;
+        result.linesPerSecond = echoed.get() * 1e9 / elapsed;
+
+        drivers.shutdown();
+        for (Socket client : clients) {
+            client.close();
+        }
+        for (Connection con : accepted) {
+            con.abort();
+        }
+        listener.close();
+
+        return result;
+    }
+
+    private static class Result {
+        private double linesPerSecond;
+        private int threads;
+        private long heapBytes;
+    }
+
+    /*
+     * the read loop of a ServerConnection, echoing every line instead of processing it
+     */
+    private static class EchoConnection extends Connection {
+        EchoConnection(Socket socket) throws IOException {
+            super(socket);
+        }
+
+        @Override
+        public void run() {
+            String data;
+
+            try {
+                while (!term && (data = inreader.readLine()) != null) {
+                    deliver(data);
+                }
+            } catch (IOException e) {
+                // closed at the end of the round
+            }
+        }
+
+        @Override
+        public boolean handleMsg(String msg) {
+            writeMsg(msg);
+
+            return false;
+        }
+    }
+}
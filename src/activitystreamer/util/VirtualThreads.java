@@ -0,0 +1,54 @@
+package activitystreamer.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Starts connection readers on virtual threads when the running JVM has them. The project still
+ * targets Java 8, so Thread.startVirtualThread is looked up reflectively.
+ *
+ * @author Huanan Li
+ */
+public final class VirtualThreads {
+    private static final Logger log = LogManager.getLogger();
+    private static final Method startVirtualThread = lookup();
+
+    private VirtualThreads() {
+    }
+
+    private static Method lookup() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return startVirtualThread != null;
+    }
+
+    /**
+     * Run the task on a new virtual thread, or on a platform thread if they are not available
+     *
+     * @param task the task to run
+     * @return Thread the started thread
+     */
+    public static Thread start(Runnable task) {
+        if (startVirtualThread != null) {
+            try {
+                return (Thread) startVirtualThread.invoke(null, task);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                log.error("failed to start a virtual thread, using a platform thread: " + e);
+            }
+        }
+
+        Thread thread = new Thread(task);
+        thread.start();
+
+        return thread;
+    }
+}